@@ -0,0 +1,138 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Attachment;
+import io.cucumber.messages.types.TestCaseFinished;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Limits the size of text attachments.
+ * <p>
+ * Text that exceeds either the per-attachment or the per-test-case limit is
+ * either truncated, or when an overflow directory is configured, written to a
+ * file in that directory.
+ */
+final class AttachmentLimiter {
+
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    private final long attachmentLimit;
+    private final long testCaseLimit;
+    private final @Nullable Path overflowDirectory;
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<Long> bytesByTestCaseStartedId = new IdRegistry.Index<>();
+
+    AttachmentLimiter(long attachmentLimit, long testCaseLimit, @Nullable Path overflowDirectory) {
+        this.attachmentLimit = attachmentLimit;
+        this.testCaseLimit = testCaseLimit;
+        this.overflowDirectory = overflowDirectory;
+    }
+
+    String limit(Attachment attachment) {
+        String body = attachment.getBody();
+        if (attachmentLimit == UNLIMITED && testCaseLimit == UNLIMITED) {
+            return body;
+        }
+        Optional<String> testCaseStartedId = attachment.getTestCaseStartedId();
+        long used = testCaseStartedId.map(id -> bytesByTestCaseStartedId.get(testCaseStartedIds.find(id)))
+                .orElse(0L);
+        long allowed = Math.min(attachmentLimit, testCaseLimit - used);
+        // A char is encoded in at most 3 bytes, avoid counting short bodies.
+        long length = (long) body.length() * 3 <= allowed ? body.length() : utf8Length(body);
+        if (length <= allowed) {
+            testCaseStartedId.ifPresent(id -> bytesByTestCaseStartedId.put(testCaseStartedIds.register(id),
+                    used + length));
+            return body;
+        }
+        if (overflowDirectory != null) {
+            Optional<Path> written = writeOverflow(overflowDirectory, attachment);
+            if (written.isPresent()) {
+                return "[%d bytes written to %s]".formatted(utf8Length(body), written.get());
+            }
+        }
+        String truncated = truncate(body, allowed);
+        testCaseStartedId.ifPresent(id -> bytesByTestCaseStartedId.put(testCaseStartedIds.register(id),
+                used + allowed));
+        return "%s\n[Truncated: showing %d of %d bytes]".formatted(truncated, utf8Length(truncated), utf8Length(body));
+    }
+
+    void release(TestCaseFinished testCaseFinished) {
+        bytesByTestCaseStartedId.remove(testCaseStartedIds.release(testCaseFinished.getTestCaseStartedId()));
+    }
+
+    private static Optional<Path> writeOverflow(Path directory, Attachment attachment) {
+        try {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "attachment-", getExtension(attachment.getMediaType()));
+            Files.writeString(file, attachment.getBody(), UTF_8);
+            return Optional.of(file);
+        } catch (IOException e) {
+            // Fall back to truncation.
+            return Optional.empty();
+        }
+    }
+
+    private static String getExtension(String mediaType) {
+        if (mediaType.endsWith("json")) {
+            return ".json";
+        }
+        if (mediaType.endsWith("xml")) {
+            return ".xml";
+        }
+        if (mediaType.endsWith("html")) {
+            return ".html";
+        }
+        return ".txt";
+    }
+
+    static long utf8Length(String text) {
+        long length = 0;
+        int index = 0;
+        while (index < text.length()) {
+            length += utf8Length(text, index);
+            index += charCount(text, index);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the longest prefix of {@code text} that encodes to at most
+     * {@code maxBytes} bytes without splitting a surrogate pair.
+     */
+    static String truncate(String text, long maxBytes) {
+        long length = 0;
+        int end = 0;
+        while (end < text.length()) {
+            length += utf8Length(text, end);
+            if (length > maxBytes) {
+                break;
+            }
+            end += charCount(text, end);
+        }
+        return text.substring(0, end);
+    }
+
+    private static int charCount(String text, int index) {
+        return Character.isHighSurrogate(text.charAt(index)) && index + 1 < text.length() ? 2 : 1;
+    }
+
+    private static int utf8Length(String text, int index) {
+        char c = text.charAt(index);
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        if (Character.isHighSurrogate(c) && index + 1 < text.length()) {
+            return 4;
+        }
+        return 3;
+    }
+}
@@ -0,0 +1,118 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy.EVERY_MESSAGE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes messages to a blocking {@link WritableByteChannel}.
+ * <p>
+ * Messages are copied into a pool of direct buffers. Once all buffers are
+ * full, they are written with a single gathering write. Because the buffers
+ * are direct, the channel does not have to copy them again before writing.
+ */
+final class ChannelSink implements MessageSink {
+
+    static final int DEFAULT_BUFFER_COUNT = 16;
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final FlushPolicy flushPolicy;
+    private final ByteBuffer[] buffers;
+    private int current;
+    private boolean failed;
+
+    ChannelSink(WritableByteChannel channel, FlushPolicy flushPolicy) {
+        this(channel, flushPolicy, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    ChannelSink(WritableByteChannel channel, FlushPolicy flushPolicy, int bufferCount, int bufferSize) {
+        this.channel = requireNonNull(channel);
+        this.flushPolicy = requireNonNull(flushPolicy);
+        this.buffers = new ByteBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    @Override
+    public void write(byte[] message) {
+        if (failed) {
+            return;
+        }
+        try {
+            append(message);
+            if (flushPolicy == EVERY_MESSAGE) {
+                flush();
+            }
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    private void append(byte[] message) throws IOException {
+        int offset = 0;
+        while (offset < message.length) {
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining()) {
+                nextBuffer();
+                continue;
+            }
+            int length = Math.min(buffer.remaining(), message.length - offset);
+            buffer.put(message, offset, length);
+            offset += length;
+        }
+    }
+
+    private void nextBuffer() throws IOException {
+        if (current + 1 < buffers.length) {
+            current++;
+            return;
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        int used = current + 1;
+        for (int i = 0; i < used; i++) {
+            buffers[i].flip();
+        }
+        if (channel instanceof GatheringByteChannel gatheringChannel) {
+            while (buffers[current].hasRemaining()) {
+                gatheringChannel.write(buffers, 0, used);
+            }
+        } else {
+            for (int i = 0; i < used; i++) {
+                while (buffers[i].hasRemaining()) {
+                    channel.write(buffers[i]);
+                }
+            }
+        }
+        for (int i = 0; i < used; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (!failed) {
+                flush();
+            }
+        } catch (IOException e) {
+            failed = true;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+}
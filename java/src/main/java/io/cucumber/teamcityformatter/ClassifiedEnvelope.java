@@ -0,0 +1,156 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Attachment;
+import io.cucumber.messages.types.Envelope;
+import io.cucumber.messages.types.GherkinDocument;
+import io.cucumber.messages.types.Hook;
+import io.cucumber.messages.types.Meta;
+import io.cucumber.messages.types.ParameterType;
+import io.cucumber.messages.types.ParseError;
+import io.cucumber.messages.types.Pickle;
+import io.cucumber.messages.types.Source;
+import io.cucumber.messages.types.StepDefinition;
+import io.cucumber.messages.types.Suggestion;
+import io.cucumber.messages.types.TestCase;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestRunFinished;
+import io.cucumber.messages.types.TestRunStarted;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.messages.types.TestStepStarted;
+import io.cucumber.messages.types.UndefinedParameterType;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * An envelope and the message it contains.
+ * <p>
+ * An envelope contains exactly one message, but can only be asked for each
+ * type of message in turn. So an envelope is classified once when it is
+ * written, and passed on with its classification. The
+ * {@link EnvelopeRouter}, the repository and the retried test case collapser
+ * all use the classification rather than probing the envelope again.
+ */
+final class ClassifiedEnvelope {
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final Envelope envelope;
+    private final MessageType type;
+    private final Object message;
+
+    private ClassifiedEnvelope(Envelope envelope, MessageType type, Object message) {
+        this.envelope = envelope;
+        this.type = type;
+        this.message = message;
+    }
+
+    /**
+     * Classifies an envelope. The message types are probed in order of how
+     * often they occur in a test run, and probing stops at the first match.
+     */
+    static ClassifiedEnvelope of(Envelope envelope) {
+        for (MessageType type : TYPES) {
+            Optional<?> message = type.message.apply(envelope);
+            if (message.isPresent()) {
+                return new ClassifiedEnvelope(envelope, type, message.get());
+            }
+        }
+        // Unreachable, OTHER matches every envelope
+        throw new IllegalArgumentException("Unknown message " + envelope);
+    }
+
+    /**
+     * Wraps a message in a new envelope, for messages that were rebuilt
+     * after they were classified.
+     */
+    static ClassifiedEnvelope of(TestStepStarted message) {
+        return new ClassifiedEnvelope(Envelope.of(message), MessageType.TEST_STEP_STARTED, message);
+    }
+
+    static ClassifiedEnvelope of(TestStepFinished message) {
+        return new ClassifiedEnvelope(Envelope.of(message), MessageType.TEST_STEP_FINISHED, message);
+    }
+
+    static ClassifiedEnvelope of(TestCaseStarted message) {
+        return new ClassifiedEnvelope(Envelope.of(message), MessageType.TEST_CASE_STARTED, message);
+    }
+
+    static ClassifiedEnvelope of(TestCaseFinished message) {
+        return new ClassifiedEnvelope(Envelope.of(message), MessageType.TEST_CASE_FINISHED, message);
+    }
+
+    Envelope getEnvelope() {
+        return envelope;
+    }
+
+    MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the message, which must be of the {@link #getType() type} of
+     * this envelope.
+     */
+    <T> T getMessage(Class<T> messageType) {
+        return messageType.cast(message);
+    }
+
+    Object getMessage() {
+        return message;
+    }
+
+    /**
+     * The types of message in an envelope, in order of how often they occur
+     * in a test run.
+     */
+    enum MessageType {
+        TEST_STEP_STARTED(TestStepStarted.class, Envelope::getTestStepStarted),
+        TEST_STEP_FINISHED(TestStepFinished.class, Envelope::getTestStepFinished),
+        ATTACHMENT(Attachment.class, Envelope::getAttachment),
+        TEST_CASE_STARTED(TestCaseStarted.class, Envelope::getTestCaseStarted),
+        TEST_CASE_FINISHED(TestCaseFinished.class, Envelope::getTestCaseFinished),
+        TEST_CASE(TestCase.class, Envelope::getTestCase),
+        PICKLE(Pickle.class, Envelope::getPickle),
+        SUGGESTION(Suggestion.class, Envelope::getSuggestion),
+        STEP_DEFINITION(StepDefinition.class, Envelope::getStepDefinition),
+        HOOK(Hook.class, Envelope::getHook),
+        GHERKIN_DOCUMENT(GherkinDocument.class, Envelope::getGherkinDocument),
+        SOURCE(Source.class, Envelope::getSource),
+        PARAMETER_TYPE(ParameterType.class, Envelope::getParameterType),
+        UNDEFINED_PARAMETER_TYPE(UndefinedParameterType.class, Envelope::getUndefinedParameterType),
+        PARSE_ERROR(ParseError.class, Envelope::getParseError),
+        META(Meta.class, Envelope::getMeta),
+        TEST_RUN_STARTED(TestRunStarted.class, Envelope::getTestRunStarted),
+        TEST_RUN_FINISHED(TestRunFinished.class, Envelope::getTestRunFinished),
+
+        /**
+         * A message the formatter does not handle. Its message is the
+         * envelope itself.
+         */
+        OTHER(null, Optional::of);
+
+        private final @Nullable Class<?> messageClass;
+        private final Function<Envelope, Optional<?>> message;
+
+        MessageType(@Nullable Class<?> messageClass, Function<Envelope, Optional<?>> message) {
+            this.messageClass = messageClass;
+            this.message = message;
+        }
+
+        /**
+         * Returns the type of {@code messageClass}, or null when it is not
+         * a message in an envelope.
+         */
+        static @Nullable MessageType of(Class<?> messageClass) {
+            for (MessageType type : TYPES) {
+                if (messageClass.equals(type.messageClass)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.GherkinDocument;
+import io.cucumber.messages.types.Pickle;
+import io.cucumber.messages.types.Source;
+import io.cucumber.messages.types.TestCase;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.messages.types.TestStepStarted;
+import io.cucumber.query.Query;
+import io.cucumber.query.Repository;
+import io.cucumber.teamcityformatter.ClassifiedEnvelope.MessageType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the messages of a test run in a {@link Repository}, and periodically
+ * discards the messages that are no longer needed to print in real time, or
+ * in a reorder window.
+ * <p>
+ * A {@code Repository} does not discard anything. So once enough messages
+ * were added since the last compaction, the messages that are still needed
+ * are replayed into a new repository. These are:
+ * <ul>
+ * <li>the messages of test cases that have not finished, or are held,</li>
+ * <li>the pickles and test cases that have not finished their last
+ * attempt,</li>
+ * <li>the gherkin documents and sources that still have unfinished
+ * pickles,</li>
+ * <li>and everything that is not specific to a test case, such as step
+ * definitions, hooks and suggestions.</li>
+ * </ul>
+ * A test case is held while it waits in a reorder window. It is considered
+ * finished once it is released, rather than when its test case finished
+ * message was added.
+ * <p>
+ * The number of messages added between compactions grows with the number of
+ * messages retained, so replaying takes amortized constant time per message.
+ * <p>
+ * Attachments are never added. The formatter keeps its own copy of an
+ * attachment, limited in size, so the repository does not have to hold on
+ * to the full body.
+ * <p>
+ * The ids that test cases, test steps and their results refer to are
+ * deserialized as a new string for every message. Before a message is
+ * added, these ids are replaced by the instance that was added first, so
+ * each id is retained once rather than once per message that refers to it.
+ * The ids of discarded messages are forgotten on compaction.
+ * <p>
+ * Not thread safe.
+ */
+final class CompactingRepository {
+
+    static final int DEFAULT_COMPACTION_THRESHOLD = 4096;
+    static final int NEVER = -1;
+
+    private final Supplier<Repository> repositoryFactory;
+    private final int compactionThreshold;
+    private final List<ClassifiedEnvelope> retained = new ArrayList<>();
+    private final IdRegistry runningTestCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<TestCaseStarted> runningByTestCaseStartedId = new IdRegistry.Index<>();
+    private final Set<String> heldTestCaseStartedIds = new HashSet<>();
+    // Finished while held, processed once released.
+    private final IdRegistry.Index<TestCaseFinished> heldTestCaseFinishedById = new IdRegistry.Index<>();
+    private final Set<String> finishedTestCaseStartedIds = new HashSet<>();
+    private final Set<String> finishedTestCaseIds = new HashSet<>();
+    private final Set<String> finishedPickleIds = new HashSet<>();
+    // Absent until the first pickle of a document was added.
+    private final Map<String, Integer> unfinishedPicklesByUri = new HashMap<>();
+    private StringInterner ids = new StringInterner();
+    private Repository repository;
+    private Query query;
+    private int nextCompaction;
+
+    /**
+     * @param repositoryFactory   creates an empty repository
+     * @param compactionThreshold the minimum number of messages added between
+     *                            compactions, or {@link #NEVER}
+     */
+    CompactingRepository(Supplier<Repository> repositoryFactory, int compactionThreshold) {
+        this.repositoryFactory = repositoryFactory;
+        this.compactionThreshold = compactionThreshold;
+        this.repository = repositoryFactory.get();
+        this.query = new Query(repository);
+        this.nextCompaction = compactionThreshold;
+    }
+
+    /**
+     * Returns the query over the current repository. The query is replaced
+     * on compaction, so it should not be held on to.
+     */
+    Query getQuery() {
+        return query;
+    }
+
+    /**
+     * Adds a message. Compacts first if due, so everything added so far can
+     * still be queried until the next message is added.
+     *
+     * @return the message as added, with its ids deduplicated
+     */
+    ClassifiedEnvelope update(ClassifiedEnvelope envelope) {
+        if (envelope.getType() == MessageType.ATTACHMENT) {
+            return envelope;
+        }
+        if (compactionThreshold == NEVER) {
+            ClassifiedEnvelope added = internIds(envelope);
+            repository.update(added.getEnvelope());
+            return added;
+        }
+        if (retained.size() >= nextCompaction && !finishedTestCaseStartedIds.isEmpty()) {
+            compact();
+        }
+        ClassifiedEnvelope added = internIds(envelope);
+        repository.update(added.getEnvelope());
+        retained.add(added);
+        switch (added.getType()) {
+            case PICKLE -> pickleAdded(added.getMessage(Pickle.class));
+            case TEST_CASE_STARTED -> testCaseStarted(added.getMessage(TestCaseStarted.class));
+            case TEST_CASE_FINISHED -> testCaseFinished(added.getMessage(TestCaseFinished.class));
+            default -> {
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns the message with the ids it refers to replaced by the
+     * instances seen first. Returns the message itself when none were
+     * replaced.
+     */
+    private ClassifiedEnvelope internIds(ClassifiedEnvelope envelope) {
+        switch (envelope.getType()) {
+            case TEST_STEP_STARTED -> {
+                TestStepStarted event = envelope.getMessage(TestStepStarted.class);
+                String testCaseStartedId = ids.intern(event.getTestCaseStartedId());
+                String testStepId = ids.intern(event.getTestStepId());
+                if (testCaseStartedId == event.getTestCaseStartedId() && testStepId == event.getTestStepId()) {
+                    return envelope;
+                }
+                return ClassifiedEnvelope.of(new TestStepStarted(testCaseStartedId, testStepId, event.getTimestamp()));
+            }
+            case TEST_STEP_FINISHED -> {
+                TestStepFinished event = envelope.getMessage(TestStepFinished.class);
+                String testCaseStartedId = ids.intern(event.getTestCaseStartedId());
+                String testStepId = ids.intern(event.getTestStepId());
+                if (testCaseStartedId == event.getTestCaseStartedId() && testStepId == event.getTestStepId()) {
+                    return envelope;
+                }
+                return ClassifiedEnvelope.of(new TestStepFinished(
+                        testCaseStartedId, testStepId, event.getTestStepResult(), event.getTimestamp()));
+            }
+            case TEST_CASE_STARTED -> {
+                TestCaseStarted event = envelope.getMessage(TestCaseStarted.class);
+                ids.intern(event.getId());
+                String testCaseId = ids.intern(event.getTestCaseId());
+                String workerId = event.getWorkerId().map(ids::intern).orElse(null);
+                if (testCaseId == event.getTestCaseId() && workerId == event.getWorkerId().orElse(null)) {
+                    return envelope;
+                }
+                return ClassifiedEnvelope.of(new TestCaseStarted(
+                        event.getAttempt(), event.getId(), testCaseId, workerId, event.getTimestamp()));
+            }
+            case TEST_CASE_FINISHED -> {
+                TestCaseFinished event = envelope.getMessage(TestCaseFinished.class);
+                String testCaseStartedId = ids.intern(event.getTestCaseStartedId());
+                if (testCaseStartedId == event.getTestCaseStartedId()) {
+                    return envelope;
+                }
+                return ClassifiedEnvelope.of(
+                        new TestCaseFinished(testCaseStartedId, event.getTimestamp(), event.getWillBeRetried()));
+            }
+            case TEST_CASE -> {
+                // Referred to by the messages above, but not worth rebuilding.
+                TestCase testCase = envelope.getMessage(TestCase.class);
+                ids.intern(testCase.getId());
+                testCase.getTestSteps().forEach(testStep -> ids.intern(testStep.getId()));
+                return envelope;
+            }
+            default -> {
+                return envelope;
+            }
+        }
+    }
+
+    int size() {
+        return retained.size();
+    }
+
+    /**
+     * Retains the messages of a started test case, even after it finished,
+     * until it is {@linkplain #release(String) released}.
+     */
+    void hold(String testCaseStartedId) {
+        if (compactionThreshold != NEVER) {
+            heldTestCaseStartedIds.add(testCaseStartedId);
+        }
+    }
+
+    /**
+     * Releases a test case held with {@link #hold(String)}. Its messages are
+     * discarded with the next compaction if it has finished.
+     */
+    void release(String testCaseStartedId) {
+        if (!heldTestCaseStartedIds.remove(testCaseStartedId)) {
+            return;
+        }
+        TestCaseFinished testCaseFinished = heldTestCaseFinishedById.remove(
+                runningTestCaseStartedIds.find(testCaseStartedId));
+        if (testCaseFinished != null) {
+            testCaseFinished(testCaseFinished);
+        }
+    }
+
+    private void pickleAdded(Pickle pickle) {
+        unfinishedPicklesByUri.merge(pickle.getUri(), 1, Integer::sum);
+    }
+
+    private void testCaseStarted(TestCaseStarted event) {
+        runningByTestCaseStartedId.put(runningTestCaseStartedIds.register(event.getId()), event);
+    }
+
+    private void testCaseFinished(TestCaseFinished event) {
+        if (heldTestCaseStartedIds.contains(event.getTestCaseStartedId())) {
+            int running = runningTestCaseStartedIds.find(event.getTestCaseStartedId());
+            if (running != IdRegistry.UNKNOWN) {
+                heldTestCaseFinishedById.put(running, event);
+            }
+            return;
+        }
+        finishedTestCaseStartedIds.add(event.getTestCaseStartedId());
+        TestCaseStarted testCaseStarted = runningByTestCaseStartedId.remove(
+                runningTestCaseStartedIds.release(event.getTestCaseStartedId()));
+        if (testCaseStarted == null || event.getWillBeRetried()) {
+            return;
+        }
+        finishedTestCaseIds.add(testCaseStarted.getTestCaseId());
+        query.findPickleBy(testCaseStarted).ifPresent(pickle -> {
+            finishedPickleIds.add(pickle.getId());
+            unfinishedPicklesByUri.computeIfPresent(pickle.getUri(), (uri, unfinished) -> unfinished - 1);
+        });
+    }
+
+    private void compact() {
+        List<ClassifiedEnvelope> live = new ArrayList<>(retained.size());
+        for (ClassifiedEnvelope envelope : retained) {
+            if (isLive(envelope)) {
+                live.add(envelope);
+            }
+        }
+        repository = repositoryFactory.get();
+        // The live messages already refer to the first instance of each id.
+        ids = new StringInterner();
+        live.forEach(envelope -> repository.update(internIds(envelope).getEnvelope()));
+        query = new Query(repository);
+
+        retained.clear();
+        retained.addAll(live);
+        finishedTestCaseStartedIds.clear();
+        finishedTestCaseIds.clear();
+        finishedPickleIds.clear();
+        unfinishedPicklesByUri.values().removeIf(unfinished -> unfinished == 0);
+        nextCompaction = 2 * retained.size() + compactionThreshold;
+    }
+
+    private boolean isLive(ClassifiedEnvelope envelope) {
+        return switch (envelope.getType()) {
+            case TEST_CASE_STARTED -> isLive(envelope.getMessage(TestCaseStarted.class).getId());
+            case TEST_STEP_STARTED -> isLive(envelope.getMessage(TestStepStarted.class).getTestCaseStartedId());
+            case TEST_STEP_FINISHED -> isLive(envelope.getMessage(TestStepFinished.class).getTestCaseStartedId());
+            case TEST_CASE_FINISHED -> isLive(envelope.getMessage(TestCaseFinished.class).getTestCaseStartedId());
+            case TEST_CASE -> !finishedTestCaseIds.contains(envelope.getMessage(TestCase.class).getId());
+            case PICKLE -> !finishedPickleIds.contains(envelope.getMessage(Pickle.class).getId());
+            case GHERKIN_DOCUMENT -> envelope.getMessage(GherkinDocument.class).getUri()
+                    .map(this::hasUnfinishedPickles)
+                    .orElse(true);
+            case SOURCE -> hasUnfinishedPickles(envelope.getMessage(Source.class).getUri());
+            default -> true;
+        };
+    }
+
+    private boolean isLive(String testCaseStartedId) {
+        return !finishedTestCaseStartedIds.contains(testCaseStartedId);
+    }
+
+    private boolean hasUnfinishedPickles(String uri) {
+        Integer unfinished = unfinishedPicklesByUri.get(uri);
+        return unfinished == null || unfinished > 0;
+    }
+}
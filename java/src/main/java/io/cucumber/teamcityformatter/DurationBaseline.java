@@ -0,0 +1,174 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.Convertor;
+import io.cucumber.messages.types.Location;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.messages.types.TestStepResultStatus;
+import io.cucumber.query.Query;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_BUILD_STATISTIC_VALUE;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_WARNING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares the duration of each scenario to a baseline from an earlier run,
+ * and warns about scenarios that got slower.
+ * <p>
+ * The baseline is a text file with a line per scenario, containing the
+ * duration in milliseconds and the {@code uri:line} of the pickle separated
+ * by a tab. After the test run the baseline is updated with the durations
+ * of the scenarios that passed, and the number of regressions is printed as
+ * a {@code buildStatisticValue} message.
+ * <p>
+ * The baseline is written when the test run finished message is received,
+ * not when the writer is closed. So a run that did not finish leaves the
+ * baseline as it was. When the baseline can not be read or written, a
+ * warning is printed.
+ */
+final class DurationBaseline implements TestRunReport {
+
+    private final Supplier<Query> query;
+    private final TeamCityCommandWriter out;
+    private final Path baseline;
+    private final int percent;
+    private final long minimumIncreaseMillis;
+    private final Map<String, Long> millisByLocation = new TreeMap<>();
+    private @Nullable IOException readFailure;
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<StartedScenario> startedByTestCaseStartedId = new IdRegistry.Index<>();
+    private int regressions;
+
+    DurationBaseline(
+            Supplier<Query> query, TeamCityCommandWriter out, Path baseline, int percent, Duration minimumIncrease
+    ) {
+        this.query = query;
+        this.out = out;
+        this.baseline = baseline;
+        this.percent = percent;
+        this.minimumIncreaseMillis = minimumIncrease.toMillis();
+        try {
+            read(baseline, millisByLocation);
+        } catch (IOException e) {
+            millisByLocation.clear();
+            readFailure = e;
+        }
+    }
+
+    @Override
+    public void register(EnvelopeRouter.Builder router) {
+        router.on(TestCaseStarted.class, this::start)
+                .on(TestCaseFinished.class, this::compare);
+    }
+
+    private void start(TestCaseStarted event) {
+        query.get().findPickleBy(event).ifPresent(pickle -> {
+            String location = pickle.getUri() + ":"
+                    + query.get().findLocationOf(pickle).map(Location::getLine).orElse(0);
+            Instant started = Convertor.toInstant(event.getTimestamp());
+            startedByTestCaseStartedId.put(testCaseStartedIds.register(event.getId()),
+                    new StartedScenario(event, location, started));
+        });
+    }
+
+    private void compare(TestCaseFinished event) {
+        StartedScenario started = startedByTestCaseStartedId.remove(
+                testCaseStartedIds.release(event.getTestCaseStartedId()));
+        if (started == null || event.getWillBeRetried() || !isPassed(started.testCaseStarted)) {
+            return;
+        }
+        Instant finished = Convertor.toInstant(event.getTimestamp());
+        long millis = Duration.between(started.timestamp, finished).toMillis();
+        Long previous = millisByLocation.put(started.location, millis);
+        if (previous != null && isRegression(previous, millis)) {
+            regressions++;
+            out.print(TEMPLATE_WARNING, "Scenario %s took %d ms, which is slower than its baseline of %d ms"
+                    .formatted(started.location, millis, previous));
+        }
+    }
+
+    private boolean isPassed(TestCaseStarted testCaseStarted) {
+        List<TestStepFinished> testStepsFinished = query.get().findTestStepsFinishedBy(testCaseStarted);
+        return testStepsFinished.stream()
+                .allMatch(testStepFinished -> testStepFinished.getTestStepResult().getStatus() == TestStepResultStatus.PASSED);
+    }
+
+    private boolean isRegression(long previous, long millis) {
+        long increase = millis - previous;
+        return increase > 0 && increase >= minimumIncreaseMillis && increase * 100 > previous * percent;
+    }
+
+    @Override
+    public void print(TeamCityCommandWriter out) {
+        if (readFailure != null) {
+            out.print(TEMPLATE_WARNING, "Could not read the duration baseline %s: %s"
+                    .formatted(baseline.toAbsolutePath(), readFailure));
+        }
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, "cucumber.scenarios.regressions", regressions);
+        try {
+            write(baseline, millisByLocation);
+        } catch (IOException e) {
+            // The next run compares against the previous baseline.
+            out.print(TEMPLATE_WARNING, "Could not write the duration baseline %s: %s"
+                    .formatted(baseline.toAbsolutePath(), e));
+        }
+    }
+
+    private static void read(Path baseline, Map<String, Long> millisByLocation) throws IOException {
+        if (Files.notExists(baseline)) {
+            // No earlier run to compare with.
+            return;
+        }
+        for (String line : Files.readAllLines(baseline, UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                parseMillis(line.substring(0, tab))
+                        .ifPresent(millis -> millisByLocation.put(line.substring(tab + 1), millis));
+            }
+        }
+    }
+
+    private static Optional<Long> parseMillis(String value) {
+        try {
+            return Optional.of(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static void write(Path baseline, Map<String, Long> millisByLocation) throws IOException {
+        List<String> lines = new ArrayList<>(millisByLocation.size());
+        millisByLocation.forEach((location, millis) -> lines.add(millis + "\t" + location));
+        Path parent = baseline.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(baseline, lines, UTF_8);
+    }
+
+    private static final class StartedScenario {
+        private final TestCaseStarted testCaseStarted;
+        private final String location;
+        private final Instant timestamp;
+
+        private StartedScenario(TestCaseStarted testCaseStarted, String location, Instant timestamp) {
+            this.testCaseStarted = testCaseStarted;
+            this.location = location;
+            this.timestamp = timestamp;
+        }
+    }
+}
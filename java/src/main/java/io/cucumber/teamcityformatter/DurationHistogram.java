@@ -0,0 +1,82 @@
+package io.cucumber.teamcityformatter;
+
+/**
+ * Histogram of durations in milliseconds, with a fixed memory footprint.
+ * <p>
+ * Durations below 16 ms are recorded exactly. Larger durations are recorded
+ * in 8 buckets per power of two, so percentiles are accurate to within
+ * 12.5%.
+ */
+final class DurationHistogram {
+
+    private static final int EXACT_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int FIRST_EXPONENT = 4;
+    private static final int BUCKETS = EXACT_BUCKETS + (Long.SIZE - 1 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    void record(long millis) {
+        long value = Math.max(0, millis);
+        counts[indexOf(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the smallest recorded bucket value such that at least
+     * {@code percentile} percent of the durations are less than or equal to
+     * it.
+     */
+    long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValueIn(i));
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < EXACT_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < EXACT_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - EXACT_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+        int subBucket = (index - EXACT_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowest = (1L << exponent) + subBucket * width;
+        return lowest + width - 1;
+    }
+}
@@ -0,0 +1,129 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.Convertor;
+import io.cucumber.messages.types.Location;
+import io.cucumber.messages.types.Pickle;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.query.Query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static io.cucumber.messages.Convertor.toDuration;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_BUILD_STATISTIC_VALUE;
+import static java.util.Comparator.comparingLong;
+
+/**
+ * Aggregates the durations of scenarios and steps and prints them as
+ * {@code buildStatisticValue} messages.
+ * <p>
+ * Durations are aggregated in histograms, so the memory used per feature is
+ * constant. Only the slowest scenarios are retained individually.
+ */
+final class DurationStatistics implements TestRunReport {
+
+    private final Supplier<Query> query;
+    private final int slowestScenarios;
+    private final DurationHistogram scenarios = new DurationHistogram();
+    private final DurationHistogram steps = new DurationHistogram();
+    private final Map<String, DurationHistogram> scenariosByFeature = new TreeMap<>();
+    private final PriorityQueue<SlowScenario> slowest = new PriorityQueue<>(comparingLong(SlowScenario::getMillis));
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<StartedScenario> startedByTestCaseStartedId = new IdRegistry.Index<>();
+
+    DurationStatistics(Supplier<Query> query, int slowestScenarios) {
+        this.query = query;
+        this.slowestScenarios = slowestScenarios;
+    }
+
+    @Override
+    public void register(EnvelopeRouter.Builder router) {
+        router.on(TestCaseStarted.class, this::start)
+                .on(TestStepFinished.class, this::record)
+                .on(TestCaseFinished.class, this::record);
+    }
+
+    private void start(TestCaseStarted event) {
+        query.get().findPickleBy(event).ifPresent(pickle -> {
+            String location = pickle.getUri() + ":" + query.get().findLocationOf(pickle).map(Location::getLine).orElse(0);
+            Instant started = Convertor.toInstant(event.getTimestamp());
+            startedByTestCaseStartedId.put(testCaseStartedIds.register(event.getId()),
+                    new StartedScenario(pickle, location, started));
+        });
+    }
+
+    private void record(TestStepFinished event) {
+        steps.record(toDuration(event.getTestStepResult().getDuration()).toMillis());
+    }
+
+    private void record(TestCaseFinished event) {
+        StartedScenario started = startedByTestCaseStartedId.remove(
+                testCaseStartedIds.release(event.getTestCaseStartedId()));
+        if (started == null) {
+            return;
+        }
+        Instant finished = Convertor.toInstant(event.getTimestamp());
+        long millis = Duration.between(started.timestamp, finished).toMillis();
+        scenarios.record(millis);
+        scenariosByFeature.computeIfAbsent(started.pickle.getUri(), uri -> new DurationHistogram()).record(millis);
+        slowest.add(new SlowScenario(started.location, millis));
+        if (slowest.size() > slowestScenarios) {
+            slowest.remove();
+        }
+    }
+
+    @Override
+    public void print(TeamCityCommandWriter out) {
+        printHistogram(out, "cucumber.scenarios", scenarios);
+        printHistogram(out, "cucumber.steps", steps);
+        scenariosByFeature.forEach((uri, histogram) -> printHistogram(out, "cucumber.features." + uri, histogram));
+        List<SlowScenario> slowestFirst = new ArrayList<>(slowest);
+        slowestFirst.sort(comparingLong(SlowScenario::getMillis).reversed());
+        for (SlowScenario scenario : slowestFirst) {
+            out.print(TEMPLATE_BUILD_STATISTIC_VALUE, "cucumber.scenarios.slowest." + scenario.location, scenario.millis);
+        }
+    }
+
+    private static void printHistogram(TeamCityCommandWriter out, String prefix, DurationHistogram histogram) {
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".count", histogram.getCount());
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.total", histogram.getTotal());
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.p50", histogram.getValueAtPercentile(50));
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.p95", histogram.getValueAtPercentile(95));
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.p99", histogram.getValueAtPercentile(99));
+        out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.max", histogram.getMax());
+    }
+
+    private static final class StartedScenario {
+        private final Pickle pickle;
+        private final String location;
+        private final Instant timestamp;
+
+        private StartedScenario(Pickle pickle, String location, Instant timestamp) {
+            this.pickle = pickle;
+            this.location = location;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final class SlowScenario {
+        private final String location;
+        private final long millis;
+
+        private SlowScenario(String location, long millis) {
+            this.location = location;
+            this.millis = millis;
+        }
+
+        private long getMillis() {
+            return millis;
+        }
+    }
+}
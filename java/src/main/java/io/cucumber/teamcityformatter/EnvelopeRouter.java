@@ -0,0 +1,71 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.teamcityformatter.ClassifiedEnvelope.MessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches each envelope to the handlers registered for the message it
+ * contains.
+ * <p>
+ * Envelopes are {@linkplain ClassifiedEnvelope classified} once when they
+ * are written. The router looks up the handlers by the type of message,
+ * without probing the envelope again.
+ */
+final class EnvelopeRouter {
+
+    // Indexed by the ordinal of the message type.
+    private final List<List<Consumer<Object>>> handlersByType;
+
+    private EnvelopeRouter(List<List<Consumer<Object>>> handlersByType) {
+        this.handlersByType = handlersByType;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    static boolean isRoutable(Class<?> type) {
+        return MessageType.of(type) != null;
+    }
+
+    void route(ClassifiedEnvelope envelope) {
+        Object message = envelope.getMessage();
+        for (Consumer<Object> handler : handlersByType.get(envelope.getType().ordinal())) {
+            handler.accept(message);
+        }
+    }
+
+    static final class Builder {
+        private final List<List<Consumer<Object>>> handlersByType = new ArrayList<>();
+
+        private Builder() {
+            for (int i = 0; i < MessageType.values().length; i++) {
+                handlersByType.add(new ArrayList<>());
+            }
+        }
+
+        /**
+         * Registers a handler. Handlers for the same type are invoked in
+         * order of registration.
+         */
+        <T> Builder on(Class<T> type, Consumer<? super T> handler) {
+            MessageType messageType = MessageType.of(type);
+            if (messageType == null) {
+                throw new IllegalArgumentException("Can not route messages of type " + type.getName());
+            }
+            handlersByType.get(messageType.ordinal()).add(message -> handler.accept(type.cast(message)));
+            return this;
+        }
+
+        EnvelopeRouter build() {
+            List<List<Consumer<Object>>> handlers = new ArrayList<>(handlersByType.size());
+            for (List<Consumer<Object>> handlersOfType : handlersByType) {
+                handlers.add(List.copyOf(handlersOfType));
+            }
+            return new EnvelopeRouter(handlers);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.cucumber.teamcityformatter;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static java.util.Collections.emptySet;
+
+/**
+ * Prefixes the ids in a line of NDJSON, so that the ids of different streams
+ * of messages do not collide.
+ * <p>
+ * Only the fields known to hold ids in each type of message are prefixed.
+ * The line is scanned as JSON rather than matched with a pattern, so a
+ * string value that contains JSON, such as a doc string or a data table
+ * cell, is never mistaken for a field.
+ */
+final class IdPrefixer {
+
+    // Includes the fields of nested objects, such as the steps of a test case.
+    private static final Map<String, Set<String>> ID_FIELDS_BY_MESSAGE = Map.ofEntries(
+            Map.entry("gherkinDocument", Set.of("id")),
+            Map.entry("pickle", Set.of("id", "astNodeId", "astNodeIds")),
+            Map.entry("stepDefinition", Set.of("id")),
+            Map.entry("hook", Set.of("id")),
+            Map.entry("parameterType", Set.of("id")),
+            Map.entry("suggestion", Set.of("id", "pickleStepId")),
+            Map.entry("testRunStarted", Set.of("id")),
+            Map.entry("testCase", Set.of(
+                    "id", "pickleId", "pickleStepId", "stepDefinitionIds", "hookId", "testRunStartedId")),
+            Map.entry("testCaseStarted", Set.of("id", "testCaseId", "workerId")),
+            Map.entry("testStepStarted", Set.of("testCaseStartedId", "testStepId")),
+            Map.entry("testStepFinished", Set.of("testCaseStartedId", "testStepId")),
+            Map.entry("testCaseFinished", Set.of("testCaseStartedId")),
+            Map.entry("attachment", Set.of(
+                    "testCaseStartedId", "testStepId", "testRunStartedId", "testRunHookStartedId")),
+            Map.entry("testRunHookStarted", Set.of("id", "testRunStartedId", "hookId")),
+            Map.entry("testRunHookFinished", Set.of("testRunHookStartedId")),
+            Map.entry("testRunFinished", Set.of("testRunStartedId"))
+    );
+
+    private IdPrefixer() {
+        /* no-op */
+    }
+
+    static String prefixIds(String json, String prefix) {
+        return prefixIds(json, prefix, field -> true);
+    }
+
+    /**
+     * @param prefixed whether the ids of a field are prefixed
+     */
+    static String prefixIds(String json, String prefix, Predicate<String> prefixed) {
+        Set<String> idFields = ID_FIELDS_BY_MESSAGE.getOrDefault(findMessageType(json), emptySet());
+        if (idFields.isEmpty()) {
+            return json;
+        }
+        StringBuilder result = new StringBuilder(json.length() + 64);
+        int copied = 0;
+        int i = 0;
+        while ((i = json.indexOf('"', i)) >= 0) {
+            int end = endOfString(json, i);
+            int colon = skipWhitespace(json, end);
+            if (colon >= json.length() || json.charAt(colon) != ':') {
+                // A string value.
+                i = end;
+                continue;
+            }
+            String field = json.substring(i + 1, end - 1);
+            i = skipWhitespace(json, colon + 1);
+            if (!idFields.contains(field) || !prefixed.test(field) || i >= json.length()) {
+                continue;
+            }
+            if (json.charAt(i) == '"') {
+                result.append(json, copied, i + 1).append(prefix);
+                copied = i + 1;
+                i = endOfString(json, i);
+            } else if (json.charAt(i) == '[') {
+                int endOfArray = json.indexOf(']', i);
+                while ((i = json.indexOf('"', i)) >= 0 && i < endOfArray) {
+                    result.append(json, copied, i + 1).append(prefix);
+                    copied = i + 1;
+                    i = endOfString(json, i);
+                }
+                i = endOfArray;
+            }
+        }
+        return result.append(json, copied, json.length()).toString();
+    }
+
+    /**
+     * Returns the field of the envelope, which names the type of message it
+     * contains.
+     */
+    private static String findMessageType(String json) {
+        int start = json.indexOf('"');
+        return start < 0 ? "" : json.substring(start + 1, endOfString(json, start) - 1);
+    }
+
+    /**
+     * Returns the index after the closing quote of the string that starts
+     * at {@code start}.
+     */
+    private static int endOfString(String json, int start) {
+        int i = start + 1;
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return json.length();
+    }
+
+    private static int skipWhitespace(String json, int start) {
+        int i = start;
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,190 @@
+package io.cucumber.teamcityformatter;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Maps the ids of one kind of message to dense ints.
+ * <p>
+ * Indexes owned by the formatter use these ints to store their values in
+ * an array rather than in a {@code HashMap} keyed by the id. The registry
+ * adds a reference and an int per id, and the index a reference.
+ * <p>
+ * The registry refers to the id strings of the messages, rather than
+ * copying them. These are deduplicated as messages enter the repository, so
+ * an id is retained once however many indexes register it.
+ * <p>
+ * Ids are released once their values are no longer needed, and their ints
+ * are reused. So the registry and its indexes grow with the number of ids
+ * in use at the same time, rather than with the number of ids seen.
+ * <p>
+ * Not thread safe. May be read concurrently while no ids are registered or
+ * released.
+ */
+final class IdRegistry {
+
+    static final int UNKNOWN = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Open addressing with linear probing, the capacity is a power of two.
+    private @Nullable String[] keys = new String[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+    private int nextInt;
+    private int[] releasedInts = new int[16];
+    private int released;
+
+    /**
+     * Returns the int for {@code id}, assigning an unused int when the id is
+     * not registered.
+     */
+    int register(String id) {
+        int slot = findSlot(keys, id);
+        String existing = keys[slot];
+        if (existing != null) {
+            return values[slot];
+        }
+        int value = released > 0 ? releasedInts[--released] : nextInt++;
+        keys[slot] = id;
+        values[slot] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return value;
+    }
+
+    /**
+     * Removes {@code id}, so that its int can be assigned to another id. The
+     * values stored for the int must be removed from the indexes.
+     *
+     * @return the int that was assigned to {@code id}, or
+     *         {@link #UNKNOWN} when the id was not registered
+     */
+    int release(String id) {
+        int slot = findSlot(keys, id);
+        if (keys[slot] == null) {
+            return UNKNOWN;
+        }
+        int value = values[slot];
+        removeSlot(slot);
+        size--;
+        if (released == releasedInts.length) {
+            releasedInts = Arrays.copyOf(releasedInts, released * 2);
+        }
+        releasedInts[released++] = value;
+        return value;
+    }
+
+    /**
+     * Returns the int for {@code id}, or {@link #UNKNOWN} when the id was not
+     * registered.
+     */
+    int find(String id) {
+        int slot = findSlot(keys, id);
+        return keys[slot] == null ? UNKNOWN : values[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static int findSlot(@Nullable String[] keys, String id) {
+        int mask = keys.length - 1;
+        int slot = mix(id.hashCode()) & mask;
+        while (true) {
+            String key = keys[slot];
+            if (key == null || key.equals(id)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int mix(int hash) {
+        // Spread sequential ids over the table.
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Empties {@code slot}, and moves later keys of the same probe sequence
+     * into it, so that they are still found.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int empty = slot;
+        int next = (empty + 1) & mask;
+        String key;
+        while ((key = keys[next]) != null) {
+            int home = mix(key.hashCode()) & mask;
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                keys[empty] = key;
+                values[empty] = values[next];
+                empty = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[empty] = null;
+    }
+
+    private void grow() {
+        @Nullable String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            String key = oldKeys[i];
+            if (key != null) {
+                int slot = findSlot(keys, key);
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Values indexed by the ints of an {@link IdRegistry}.
+     */
+    static final class Index<V> {
+        private @Nullable Object[] values = new Object[16];
+
+        @SuppressWarnings("unchecked")
+        @Nullable V get(int id) {
+            if (id < 0 || id >= values.length) {
+                return null;
+            }
+            return (V) values[id];
+        }
+
+        void put(int id, V value) {
+            if (id >= values.length) {
+                values = Arrays.copyOf(values, Math.max(id + 1, values.length * 2));
+            }
+            values[id] = value;
+        }
+
+        @Nullable V remove(int id) {
+            V value = get(id);
+            if (value != null) {
+                values[id] = null;
+            }
+            return value;
+        }
+
+        /**
+         * Invokes {@code action} for each value, in order of their ints.
+         */
+        @SuppressWarnings("unchecked")
+        void forEach(Consumer<? super V> action) {
+            for (Object value : values) {
+                if (value != null) {
+                    action.accept((V) value);
+                }
+            }
+        }
+    }
+}
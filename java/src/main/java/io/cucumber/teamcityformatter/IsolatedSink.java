@@ -0,0 +1,94 @@
+package io.cucumber.teamcityformatter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes to a delegate sink on a dedicated thread.
+ * <p>
+ * Messages are passed on through a bounded queue. A slow sink delays the
+ * formatter only once its queue is full, so it does not hold up the other
+ * sinks while it catches up.
+ * <p>
+ * A delegate that throws is not written to again. The remaining messages are
+ * discarded, so neither the formatter nor {@link #close()} wait for it.
+ */
+final class IsolatedSink implements MessageSink {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final byte[] END_OF_MESSAGES = new byte[0];
+
+    private final MessageSink delegate;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread thread;
+    private volatile boolean failed;
+
+    IsolatedSink(MessageSink delegate, int capacity, String name) {
+        this.delegate = requireNonNull(delegate);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void write(byte[] message) {
+        if (failed) {
+            return;
+        }
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            byte[] message;
+            while ((message = queue.take()) != END_OF_MESSAGES) {
+                if (!failed) {
+                    write(delegate, message);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(delegate);
+        }
+    }
+
+    private void write(MessageSink delegate, byte[] message) {
+        try {
+            delegate.write(message);
+        } catch (RuntimeException e) {
+            // Like a PrintWriter, stop writing to a broken sink.
+            failed = true;
+        }
+    }
+
+    private void close(MessageSink delegate) {
+        try {
+            delegate.close();
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public void close() {
+        try {
+            queue.put(END_OF_MESSAGES);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package io.cucumber.teamcityformatter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects rendered messages in memory so they can be written later.
+ */
+final class MessageBuffer implements MessageSink {
+
+    private final List<byte[]> messages = new ArrayList<>();
+    private final List<MessagePriority> priorities = new ArrayList<>();
+    private long bytes;
+
+    @Override
+    public void write(byte[] message) {
+        write(message, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void write(byte[] message, MessagePriority priority) {
+        messages.add(message);
+        priorities.add(priority);
+        bytes += message.length;
+    }
+
+    List<byte[]> getMessages() {
+        return messages;
+    }
+
+    List<MessagePriority> getPriorities() {
+        return priorities;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
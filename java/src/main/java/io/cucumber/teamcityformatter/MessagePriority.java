@@ -0,0 +1,37 @@
+package io.cucumber.teamcityformatter;
+
+/**
+ * How important a message is to the integrity of the output.
+ * <p>
+ * When the output can not keep up, a sink may shed messages of low priority.
+ * Test started, finished and failed messages are never shed, except for the
+ * started and finished messages of passing hooks, which are shed in pairs.
+ *
+ * @see MessagesToTeamCityWriter.OverloadPolicy#SHED
+ */
+enum MessagePriority {
+
+    /**
+     * Must be written.
+     */
+    NORMAL,
+
+    /**
+     * May be shed, such as progress and attachment messages.
+     */
+    LOW,
+
+    /**
+     * Starts a test that may be shed, such as a hook. The message may be
+     * deferred until it is known whether the test passed. Every message that
+     * follows it, other than {@link #LOW_FINISHED}, requires it to be
+     * written first.
+     */
+    LOW_STARTED,
+
+    /**
+     * Finishes a passed test started with {@link #LOW_STARTED}. Shed together
+     * with its started message when that message was deferred.
+     */
+    LOW_FINISHED
+}
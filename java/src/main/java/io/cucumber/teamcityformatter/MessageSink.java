@@ -0,0 +1,28 @@
+package io.cucumber.teamcityformatter;
+
+/**
+ * Destination for rendered TeamCity service messages.
+ * <p>
+ * Messages are rendered and encoded once, the same bytes are then written to
+ * every sink. Like a {@link java.io.PrintWriter}, sinks do not propagate IO
+ * errors.
+ */
+interface MessageSink extends AutoCloseable {
+
+    /**
+     * Writes a single encoded message, including the line separator. The
+     * array must not be modified after it has been written.
+     */
+    void write(byte[] message);
+
+    /**
+     * Writes a single encoded message with a priority. Sinks that do not
+     * shed messages ignore the priority.
+     */
+    default void write(byte[] message, MessagePriority priority) {
+        write(message);
+    }
+
+    @Override
+    void close();
+}
@@ -0,0 +1,268 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.NdjsonToMessageReader;
+import io.cucumber.messages.types.Envelope;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Writes the <a href="https://github.com/cucumber/messages">Cucumber Messages</a>
+ * in an NDJSON file as
+ * <a href=https://www.jetbrains.com/help/teamcity/service-messages.html>TeamCity - Service Messages</a>
+ * while another process is still appending to it.
+ * <p>
+ * Complete lines are written as soon as they are read. A line that is only
+ * partially written is held back until the rest of it was appended. When
+ * there is nothing to read, the follower waits for the file system to report
+ * a change to the file, or for the poll interval to pass, whichever comes
+ * first.
+ */
+public final class MessagesToTeamCityFollower {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final NdjsonToMessageReader.Deserializer deserializer;
+    private final MessagesToTeamCityWriter.Builder writer;
+    private final long pollIntervalNanos;
+    private final long timeoutNanos;
+
+    private MessagesToTeamCityFollower(
+            NdjsonToMessageReader.Deserializer deserializer, MessagesToTeamCityWriter.Builder writer,
+            Duration pollInterval, Duration timeout
+    ) {
+        this.deserializer = deserializer;
+        this.writer = writer;
+        this.pollIntervalNanos = pollInterval.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    /**
+     * @param deserializer reads an envelope from a line of NDJSON
+     */
+    public static Builder builder(NdjsonToMessageReader.Deserializer deserializer) {
+        return new Builder(requireNonNull(deserializer));
+    }
+
+    /**
+     * Follows an NDJSON file until the test run finished message was read,
+     * or until nothing was appended for the duration of the timeout. The
+     * file does not have to exist yet.
+     *
+     * @param file the NDJSON file to follow
+     * @param out  the stream to write to, closed once done
+     * @return {@code true} if the test run finished, {@code false} on timeout
+     * @throws IOException if an IO error occurs, or the thread was
+     *                     interrupted
+     */
+    public boolean follow(Path file, OutputStream out) throws IOException {
+        requireNonNull(file);
+        requireNonNull(out);
+        try (MessagesToTeamCityWriter messages = writer.build(out);
+             WatchService watcher = file.getFileSystem().newWatchService();
+             Tail tail = new Tail(file)) {
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null && Files.isDirectory(directory)) {
+                directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (true) {
+                int read = tail.read();
+                String line;
+                while ((line = tail.nextLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    Envelope envelope = deserializer.readValue(line);
+                    messages.write(envelope);
+                    if (envelope.getTestRunFinished().isPresent()) {
+                        return true;
+                    }
+                }
+                long now = System.nanoTime();
+                if (read > 0) {
+                    deadline = now + timeoutNanos;
+                    continue;
+                }
+                if (now - deadline >= 0) {
+                    return false;
+                }
+                await(watcher, Math.min(pollIntervalNanos, deadline - now));
+            }
+        }
+    }
+
+    private static void await(WatchService watcher, long nanos) throws IOException {
+        try {
+            WatchKey key = watcher.poll(nanos, NANOSECONDS);
+            if (key != null) {
+                // Any change is a reason to look at the file again.
+                key.pollEvents();
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while following", e);
+        }
+    }
+
+    /**
+     * Reads the bytes appended to a file, and splits them into lines.
+     * <p>
+     * Bytes that were read but are not part of a complete line yet are kept
+     * in a buffer that grows as needed. The buffer is only scanned for the
+     * end of a line once, so reading a long line in many small parts takes
+     * linear time.
+     */
+    private static final class Tail implements AutoCloseable {
+        private final Path file;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private byte[] pending = new byte[BUFFER_SIZE];
+        // The pending bytes are in [lineStart, length), the bytes before
+        // scanned do not contain the end of a line.
+        private int length;
+        private int lineStart;
+        private int scanned;
+        private @Nullable FileChannel channel;
+
+        private Tail(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Reads the bytes appended since the last read, if any.
+         *
+         * @return the number of bytes read
+         */
+        int read() throws IOException {
+            FileChannel channel = this.channel;
+            if (channel == null) {
+                if (!Files.exists(file)) {
+                    return 0;
+                }
+                channel = FileChannel.open(file, READ);
+                this.channel = channel;
+            }
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read <= 0) {
+                return 0;
+            }
+            buffer.flip();
+            ensureCapacity(read);
+            buffer.get(pending, length, read);
+            length += read;
+            return read;
+        }
+
+        /**
+         * Makes room for {@code bytes} more bytes, discarding the lines that
+         * were already returned.
+         */
+        private void ensureCapacity(int bytes) {
+            if (length + bytes <= pending.length) {
+                return;
+            }
+            int remaining = length - lineStart;
+            byte[] target = remaining + bytes <= pending.length
+                    ? pending
+                    : new byte[Math.max(remaining + bytes, pending.length * 2)];
+            System.arraycopy(pending, lineStart, target, 0, remaining);
+            pending = target;
+            scanned -= lineStart;
+            length = remaining;
+            lineStart = 0;
+        }
+
+        /**
+         * Returns the next complete line, or {@code null} if the rest of the
+         * line was not read yet.
+         */
+        @Nullable String nextLine() {
+            for (int i = scanned; i < length; i++) {
+                if (pending[i] == '\n') {
+                    int end = i > lineStart && pending[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(pending, lineStart, end - lineStart, UTF_8);
+                    lineStart = i + 1;
+                    scanned = lineStart;
+                    return line;
+                }
+            }
+            scanned = length;
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private final NdjsonToMessageReader.Deserializer deserializer;
+        private MessagesToTeamCityWriter.Builder writer = MessagesToTeamCityWriter.builder();
+        private Duration pollInterval = Duration.ofMillis(100);
+        private Duration timeout = Duration.ofMinutes(5);
+
+        private Builder(NdjsonToMessageReader.Deserializer deserializer) {
+            this.deserializer = deserializer;
+        }
+
+        /**
+         * Sets the writer used to write the messages.
+         */
+        public Builder writer(MessagesToTeamCityWriter.Builder writer) {
+            this.writer = requireNonNull(writer);
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for a change to the file before looking at
+         * it again regardless. Some file systems report changes late or not
+         * at all. Defaults to 100 milliseconds.
+         */
+        public Builder pollInterval(Duration pollInterval) {
+            requireNonNull(pollInterval);
+            if (pollInterval.isNegative() || pollInterval.isZero()) {
+                throw new IllegalArgumentException("pollInterval must be positive, but was " + pollInterval);
+            }
+            this.pollInterval = pollInterval;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for something to be appended to the file
+         * before giving up. Defaults to 5 minutes.
+         */
+        public Builder timeout(Duration timeout) {
+            requireNonNull(timeout);
+            if (timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("timeout must be positive, but was " + timeout);
+            }
+            this.timeout = timeout;
+            return this;
+        }
+
+        public MessagesToTeamCityFollower build() {
+            return new MessagesToTeamCityFollower(deserializer, writer, pollInterval, timeout);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.NdjsonToMessageReader;
+import io.cucumber.messages.types.Envelope;
+import io.cucumber.messages.types.TestRunFinished;
+import io.cucumber.messages.types.Timestamp;
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy;
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Merges the <a href="https://github.com/cucumber/messages">Cucumber Messages</a>
+ * of several shards of a test run into a single stream of
+ * <a href=https://www.jetbrains.com/help/teamcity/service-messages.html>TeamCity - Service Messages</a>.
+ * <p>
+ * Each shard is read from its own thread, so shards may be live streams that
+ * are still being written to.
+ */
+public final class MessagesToTeamCityMerger {
+
+    private static final int REORDER_WINDOW_TEST_CASES = 256;
+    private static final long REORDER_WINDOW_BYTES = 16 * 1024 * 1024;
+    private static final Comparator<Timestamp> TIMESTAMP_ORDER = comparing(Timestamp::getSeconds)
+            .thenComparing(Timestamp::getNanos);
+
+    private final NdjsonToMessageReader.Deserializer deserializer;
+    private final MergeMode mode;
+    private final MessagesToTeamCityWriter.Builder writer;
+
+    private MessagesToTeamCityMerger(
+            NdjsonToMessageReader.Deserializer deserializer, MergeMode mode, MessagesToTeamCityWriter.Builder writer
+    ) {
+        this.deserializer = deserializer;
+        this.mode = mode;
+        this.writer = writer;
+    }
+
+    /**
+     * @param deserializer reads an envelope from a line of NDJSON
+     */
+    public static Builder builder(NdjsonToMessageReader.Deserializer deserializer) {
+        return new Builder(requireNonNull(deserializer));
+    }
+
+    /**
+     * Merges shards read from NDJSON files.
+     *
+     * @param shards the NDJSON files, one per shard
+     * @param out    the stream to write to, closed once merged
+     * @throws IOException if an IO error occurs
+     */
+    public void mergeFiles(List<Path> shards, OutputStream out) throws IOException {
+        List<InputStream> in = new ArrayList<>(shards.size());
+        try {
+            for (Path shard : shards) {
+                in.add(Files.newInputStream(shard));
+            }
+            merge(in, out);
+        } finally {
+            for (InputStream shard : in) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Merges shards read from NDJSON streams. The streams are not closed.
+     *
+     * @param shards the NDJSON streams, one per shard
+     * @param out    the stream to write to, closed once merged
+     * @throws IOException if an IO error occurs
+     */
+    public void merge(List<? extends InputStream> shards, OutputStream out) throws IOException {
+        requireNonNull(shards);
+        SharedSink sink = new SharedSink(new OutputStreamSink(requireNonNull(out), FlushPolicy.EVERY_MESSAGE));
+        try {
+            switch (mode) {
+                case FLOW_ID -> mergeFlows(shards, sink);
+                case CANONICAL -> mergeCanonical(shards, sink);
+            }
+        } finally {
+            sink.closeShared();
+        }
+    }
+
+    private void mergeFlows(List<? extends InputStream> shards, SharedSink sink) throws IOException {
+        List<MessagesToTeamCityWriter> writers = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            writers.add(writer.buildFlow(sink, "shard-" + i));
+        }
+        TestRunWrapper testRun = new TestRunWrapper(new TeamCityCommandWriter(List.of(sink)));
+        try {
+            read(shards, false, (shard, envelope) -> testRun.write(writers.get(shard), envelope));
+        } finally {
+            for (MessagesToTeamCityWriter shardWriter : writers) {
+                shardWriter.close();
+            }
+        }
+        testRun.finish();
+    }
+
+    private void mergeCanonical(List<? extends InputStream> shards, SharedSink sink) throws IOException {
+        try (MessagesToTeamCityWriter merged = writer.buildMerged(sink, REORDER_WINDOW_TEST_CASES, REORDER_WINDOW_BYTES)) {
+            TestRunMerger testRun = new TestRunMerger(merged);
+            read(shards, true, testRun::write);
+            testRun.finish();
+        }
+    }
+
+    private void read(List<? extends InputStream> shards, boolean prefixIds, ShardHandler handler) throws IOException {
+        if (shards.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "teamcity-formatter-shard-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> readers = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                int shard = i;
+                InputStream in = shards.get(i);
+                readers.add(executor.submit(() -> {
+                    read(shard, in, prefixIds, handler);
+                    return null;
+                }));
+            }
+            awaitAll(readers);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void read(int shard, InputStream in, boolean prefixIds, ShardHandler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String json = prefixIds ? IdPrefixer.prefixIds(line, shard + "-") : line;
+            handler.write(shard, deserializer.readValue(json));
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> readers) throws IOException {
+        IOException failure = null;
+        for (Future<?> reader : readers) {
+            try {
+                reader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while merging shards", e);
+            } catch (ExecutionException e) {
+                IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ShardHandler {
+        void write(int shard, Envelope envelope) throws IOException;
+    }
+
+    /**
+     * Prints a single test run around the flows of all shards.
+     * <p>
+     * The test run is started before the first test run started message of
+     * any shard is written, and finished once all shards have concluded, at
+     * the time the last shard finished.
+     */
+    private static final class TestRunWrapper {
+        private final TeamCityCommandWriter out;
+        private @Nullable Timestamp started;
+        private @Nullable Timestamp finished;
+
+        private TestRunWrapper(TeamCityCommandWriter out) {
+            this.out = out;
+        }
+
+        void write(MessagesToTeamCityWriter shard, Envelope envelope) throws IOException {
+            envelope.getTestRunStarted().ifPresent(testRunStarted -> started(testRunStarted.getTimestamp()));
+            envelope.getTestRunFinished().ifPresent(testRunFinished -> finished(testRunFinished.getTimestamp()));
+            shard.write(envelope);
+        }
+
+        private synchronized void started(Timestamp timestamp) {
+            if (started == null) {
+                started = timestamp;
+                TeamCityWriter.printTestRunStarted(out, timestamp);
+            }
+        }
+
+        private synchronized void finished(Timestamp timestamp) {
+            if (finished == null || TIMESTAMP_ORDER.compare(timestamp, finished) > 0) {
+                finished = timestamp;
+            }
+        }
+
+        synchronized void finish() {
+            Timestamp started = this.started;
+            if (started != null) {
+                Timestamp finished = this.finished;
+                TeamCityWriter.printTestRunFinished(out, finished == null ? started : finished);
+            }
+        }
+    }
+
+    /**
+     * Combines the test runs of all shards into one.
+     * <p>
+     * Only the first meta and test run started messages are written. The
+     * test run finished message is written once all shards have concluded.
+     * When a shard failed outside a test case, its test run finished message
+     * is used, otherwise the one that finished last.
+     */
+    private static final class TestRunMerger {
+        private final MessagesToTeamCityWriter writer;
+        private boolean metaWritten;
+        private boolean testRunStartedWritten;
+        private @Nullable TestRunFinished testRunFinished;
+        private @Nullable Envelope testRunFinishedEnvelope;
+
+        private TestRunMerger(MessagesToTeamCityWriter writer) {
+            this.writer = writer;
+        }
+
+        synchronized void write(int shard, Envelope envelope) throws IOException {
+            if (envelope.getMeta().isPresent()) {
+                if (!metaWritten) {
+                    metaWritten = true;
+                    writer.write(envelope);
+                }
+                return;
+            }
+            if (envelope.getTestRunStarted().isPresent()) {
+                if (!testRunStartedWritten) {
+                    testRunStartedWritten = true;
+                    writer.write(envelope);
+                }
+                return;
+            }
+            if (envelope.getTestRunFinished().isPresent()) {
+                TestRunFinished candidate = envelope.getTestRunFinished().get();
+                if (testRunFinished == null || isPreferred(candidate, testRunFinished)) {
+                    testRunFinished = candidate;
+                    testRunFinishedEnvelope = envelope;
+                }
+                return;
+            }
+            writer.write(envelope);
+        }
+
+        private static boolean isPreferred(TestRunFinished candidate, TestRunFinished current) {
+            boolean candidateFailed = candidate.getException().isPresent();
+            boolean currentFailed = current.getException().isPresent();
+            if (candidateFailed != currentFailed) {
+                return candidateFailed;
+            }
+            return !currentFailed && TIMESTAMP_ORDER.compare(candidate.getTimestamp(), current.getTimestamp()) > 0;
+        }
+
+        synchronized void finish() throws IOException {
+            if (testRunFinishedEnvelope != null) {
+                writer.write(testRunFinishedEnvelope);
+            }
+        }
+    }
+
+    /**
+     * Serializes the messages of all shards, and leaves closing the
+     * underlying sink to the merger.
+     */
+    private static final class SharedSink implements MessageSink {
+        private final MessageSink delegate;
+
+        private SharedSink(MessageSink delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void write(byte[] message) {
+            delegate.write(message);
+        }
+
+        @Override
+        public void close() {
+            // Closed by the merger, once all shards are done
+        }
+
+        synchronized void closeShared() {
+            delegate.close();
+        }
+    }
+
+    /**
+     * How the shards are merged.
+     */
+    public enum MergeMode {
+        /**
+         * Writes the messages of each shard as they are read, as a separate
+         * flow identified by a {@code flowId}, inside a single test run.
+         * <p>
+         * Each shard has its own writer, so the writer must not write to
+         * files such as a duration baseline or a timing manifest.
+         */
+        FLOW_ID,
+
+        /**
+         * Writes a single test run, with the test cases of all shards in
+         * canonical order as far as the reorder window of the writer allows.
+         * Without a reorder window, a window of 256 test cases or 16 MiB is
+         * used. Ids are prefixed per shard so that they do not collide.
+         * <p>
+         * With {@link MessagesToTeamCityWriter.TeamCityFeature#PRINT_TEST_CASES_AFTER_TEST_RUN}
+         * the test cases are written once all shards have concluded, in
+         * canonical order.
+         */
+        CANONICAL
+    }
+
+    public static final class Builder {
+
+        private final NdjsonToMessageReader.Deserializer deserializer;
+        private MergeMode mode = MergeMode.FLOW_ID;
+        private MessagesToTeamCityWriter.Builder writer = MessagesToTeamCityWriter.builder();
+
+        private Builder(NdjsonToMessageReader.Deserializer deserializer) {
+            this.deserializer = deserializer;
+        }
+
+        /**
+         * Sets how the shards are merged. Defaults to
+         * {@link MergeMode#FLOW_ID}.
+         */
+        public Builder mode(MergeMode mode) {
+            this.mode = requireNonNull(mode);
+            return this;
+        }
+
+        /**
+         * Sets the writer used to write each shard, or the merged test run.
+         * Sinks added to the writer are not used.
+         */
+        public Builder writer(MessagesToTeamCityWriter.Builder writer) {
+            this.writer = requireNonNull(writer);
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException when merging in
+         *                               {@link MergeMode#FLOW_ID} mode with a
+         *                               writer that writes to files
+         */
+        public MessagesToTeamCityMerger build() {
+            if (mode == MergeMode.FLOW_ID && writer.hasFileOutputs()) {
+                throw new IllegalStateException(
+                        "The shards of mode FLOW_ID can not share the files written by the writer, use mode CANONICAL");
+            }
+            return new MessagesToTeamCityMerger(deserializer, mode, writer);
+        }
+    }
+}
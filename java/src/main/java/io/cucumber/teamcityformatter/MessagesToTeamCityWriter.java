@@ -3,17 +3,30 @@ package io.cucumber.teamcityformatter;
 import io.cucumber.messages.types.Envelope;
 import io.cucumber.query.Query;
 import io.cucumber.query.Repository;
+import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import static io.cucumber.query.Repository.RepositoryFeature.INCLUDE_GHERKIN_DOCUMENTS;
 import static io.cucumber.query.Repository.RepositoryFeature.INCLUDE_HOOKS;
 import static io.cucumber.query.Repository.RepositoryFeature.INCLUDE_STEP_DEFINITIONS;
 import static io.cucumber.query.Repository.RepositoryFeature.INCLUDE_SUGGESTIONS;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.COLLAPSE_RETRIED_TEST_CASES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_DURATION_STATISTICS;
 import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
+import static java.util.Collections.unmodifiableSet;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -22,29 +35,78 @@ import static java.util.Objects.requireNonNull;
  */
 public final class MessagesToTeamCityWriter implements AutoCloseable {
 
-    private final Repository repository = Repository.builder()
-            .feature(INCLUDE_GHERKIN_DOCUMENTS, true)
-            .feature(INCLUDE_STEP_DEFINITIONS, true)
-            .feature(INCLUDE_HOOKS, true)
-            .feature(INCLUDE_SUGGESTIONS, true)
-            .build();
+    private final CompactingRepository repository;
+    private final StringInterner interner = new StringInterner();
+    private final RetriedTestCaseCollapser retriedTestCaseCollapser = new RetriedTestCaseCollapser(interner);
     private final Set<TeamCityFeature> features;
     private final TeamCityWriter writer;
+    // Sees messages as written, before they are held back for printing.
+    private final EnvelopeRouter receivedRouter;
+    private final @Nullable StepWatchdog stepWatchdog;
 
     private boolean streamClosed = false;
 
-    private MessagesToTeamCityWriter(OutputStream out, Set<TeamCityFeature> features) {
+    private MessagesToTeamCityWriter(TeamCityCommandWriter out, Options options) {
+        // Printing after the test run needs every test case until the end.
+        // A reorder window holds on to the test cases it holds.
+        boolean compacting = !options.hasFeature(PRINT_TEST_CASES_AFTER_TEST_RUN);
+        this.repository = new CompactingRepository(MessagesToTeamCityWriter::createRepository,
+                compacting ? options.compactionThreshold : CompactingRepository.NEVER);
+        Supplier<Query> query = repository::getQuery;
+        List<TestRunReport> reports = new ArrayList<>();
+        if (options.hasFeature(PRINT_DURATION_STATISTICS)) {
+            reports.add(new DurationStatistics(query, options.slowestScenarios));
+        }
+        @Nullable StepDefinitionProfileOptions stepDefinitionProfile = options.stepDefinitionProfile;
+        if (stepDefinitionProfile != null) {
+            reports.add(new StepDefinitionProfile(
+                    query, stepDefinitionProfile.top, stepDefinitionProfile.output, stepDefinitionProfile.artifact));
+        }
+        @Nullable DurationBaselineOptions durationBaseline = options.durationBaseline;
+        if (durationBaseline != null) {
+            reports.add(new DurationBaseline(
+                    query, out, durationBaseline.baseline, durationBaseline.percent, durationBaseline.minimumIncrease));
+        }
+        @Nullable Path timingManifest = options.timingManifest;
+        if (timingManifest != null) {
+            reports.add(new ScenarioTimings(query, timingManifest));
+        }
+        this.stepWatchdog = createStepWatchdog(out, options.stepWatchdogThreshold, options.stepWatchdogClock);
         this.writer = new TeamCityWriter(
-                new TeamCityCommandWriter(out),
-                new Query(repository)
-        );
-        this.features = features;
+                out, repository, retriedTestCaseCollapser, reports, stepWatchdog, interner, options);
+        this.features = options.features;
+        EnvelopeRouter.Builder receivedRouter = EnvelopeRouter.builder();
+        writer.watchTestSteps(receivedRouter);
+        options.handlers.forEach(handler -> handler.accept(receivedRouter));
+        this.receivedRouter = receivedRouter.build();
+    }
+
+    private static @Nullable StepWatchdog createStepWatchdog(
+            TeamCityCommandWriter out, @Nullable Duration threshold, @Nullable LongSupplier clock
+    ) {
+        if (threshold == null) {
+            return null;
+        }
+        if (clock == null) {
+            return new StepWatchdog(out, threshold, System::nanoTime).start();
+        }
+        // Checked with checkRunningSteps instead.
+        return new StepWatchdog(out, threshold, clock);
     }
 
     public static Builder builder() {
         return new Builder();
     }
 
+    private static Repository createRepository() {
+        return Repository.builder()
+                .feature(INCLUDE_GHERKIN_DOCUMENTS, true)
+                .feature(INCLUDE_STEP_DEFINITIONS, true)
+                .feature(INCLUDE_HOOKS, true)
+                .feature(INCLUDE_SUGGESTIONS, true)
+                .build();
+    }
+
     /**
      * Writes a cucumber message.
      *
@@ -55,11 +117,24 @@ public final class MessagesToTeamCityWriter implements AutoCloseable {
         if (streamClosed) {
             throw new IOException("Stream closed");
         }
-        repository.update(envelope);
-        if (features.contains(PRINT_TEST_CASES_AFTER_TEST_RUN)) {
-            writer.printTestCasesAfterTestRun(envelope);
-        } else {
-            writer.printTestCasesRealTime(envelope);
+        ClassifiedEnvelope classified = ClassifiedEnvelope.of(envelope);
+        receivedRouter.route(classified);
+        if (!features.contains(PRINT_TEST_CASES_AFTER_TEST_RUN) || !features.contains(COLLAPSE_RETRIED_TEST_CASES)) {
+            writer.print(repository.update(classified));
+            return;
+        }
+        for (ClassifiedEnvelope released : retriedTestCaseCollapser.collapse(classified)) {
+            writer.print(repository.update(released));
+        }
+    }
+
+    /**
+     * Checks the running steps against the step watchdog threshold, rather
+     * than waiting for the next periodic check.
+     */
+    void checkRunningSteps() {
+        if (stepWatchdog != null) {
+            stepWatchdog.check();
         }
     }
 
@@ -89,12 +164,283 @@ public final class MessagesToTeamCityWriter implements AutoCloseable {
          * By printing these events at the end the output is still intelligible. 
          * 
          */
-        PRINT_TEST_CASES_AFTER_TEST_RUN
+        PRINT_TEST_CASES_AFTER_TEST_RUN,
+
+        /**
+         * Collapses retried attempts of a test case into a summary.
+         * <p>
+         * When a test case will be retried, the messages of that attempt are
+         * discarded. Only the final attempt is printed, preceded by a message
+         * with the number of retried attempts and the last failure.
+         * <p>
+         * Only applies in combination with
+         * {@link #PRINT_TEST_CASES_AFTER_TEST_RUN}.
+         */
+        COLLAPSE_RETRIED_TEST_CASES,
+
+        /**
+         * Prints the durations of scenarios and steps as
+         * {@code buildStatisticValue} messages after the test run has
+         * concluded.
+         * <p>
+         * For scenarios, steps and each feature the count, total, p50, p95,
+         * p99 and maximum duration in milliseconds are printed, followed by
+         * the {@link Builder#slowestScenarios(int) slowest scenarios}.
+         */
+        PRINT_DURATION_STATISTICS,
+
+        /**
+         * Does not print a test suite for rules.
+         * <p>
+         * The name of the rule is prefixed to the name of each scenario in
+         * the rule instead.
+         */
+        FLATTEN_RULES,
+
+        /**
+         * Does not print a test suite for the examples of a scenario outline.
+         * <p>
+         * The name of the examples is prefixed to the name of each example
+         * instead.
+         */
+        FLATTEN_EXAMPLES,
+
+        /**
+         * Does not print a test suite for scenario outlines and their
+         * examples.
+         * <p>
+         * Each example is printed as a test suite directly in the feature or
+         * rule. The name of the scenario outline and the examples are
+         * prefixed to the parameterized name of the example instead. This
+         * greatly reduces the number of test suites printed for suites with
+         * many scenario outlines.
+         */
+        FLATTEN_SCENARIO_OUTLINES,
+
+        /**
+         * Prints each scenario as a test, rather than as a test suite with a
+         * test for each step and hook.
+         * <p>
+         * When a scenario does not pass, the result of the first step that
+         * did not pass is printed as the result of the scenario. The details
+         * of a failure are followed by the outcome of every step. Attachments
+         * are printed as part of the scenario.
+         */
+        PRINT_SCENARIOS_AS_TESTS,
+
+        /**
+         * Prints the snippets for an undefined step only once.
+         * <p>
+         * Later steps with the same snippets refer to the location of the
+         * scenario where the snippets were printed. Does not apply when
+         * test cases are rendered in parallel with
+         * {@link Builder#renderingExecutor(Executor)}.
+         */
+        PRINT_SNIPPETS_ONCE
+    }
+
+    /**
+     * When the messages written to a sink are flushed.
+     */
+    public enum FlushPolicy {
+        /**
+         * Flushes the sink after every message.
+         */
+        EVERY_MESSAGE,
+
+        /**
+         * Buffers messages and flushes the sink when the writer is closed.
+         */
+        ON_CLOSE
+    }
+
+    /**
+     * What to do when the sinks can not keep up with the messages.
+     *
+     * @see Builder#overloadPolicy(OverloadPolicy, long)
+     */
+    public enum OverloadPolicy {
+        /**
+         * Waits until the sink has written the message.
+         */
+        BLOCK,
+
+        /**
+         * Buffers the messages and writes them from a separate thread. When
+         * the buffer exceeds the watermark, low value messages are
+         * discarded: progress messages, attachments and passing hooks. Test
+         * started, finished and failed messages are never discarded. The
+         * number of discarded messages is reported when the writer is
+         * closed.
+         */
+        SHED,
+
+        /**
+         * Buffers the messages and writes them from a separate thread. When
+         * the buffer exceeds the watermark, all buffered messages are written
+         * at once rather than one at a time.
+         */
+        COALESCE
+    }
+
+    /**
+     * How the step definition profile is printed.
+     *
+     * @see Builder#stepDefinitionProfile(int, ProfileOutput)
+     */
+    public enum ProfileOutput {
+        /**
+         * Prints the count, total, max and mean duration of each step
+         * definition and hook as {@code buildStatisticValue} messages.
+         */
+        BUILD_STATISTIC_VALUES,
+
+        /**
+         * Prints the profile as a table in a single {@code message}.
+         */
+        MESSAGE
+    }
+
+    private static final class StepDefinitionProfileOptions {
+        private final int top;
+        private final ProfileOutput output;
+        private final @Nullable Path artifact;
+
+        private StepDefinitionProfileOptions(int top, ProfileOutput output, @Nullable Path artifact) {
+            this.top = top;
+            this.output = output;
+            this.artifact = artifact;
+        }
+    }
+
+    private static final class DurationBaselineOptions {
+        private final Path baseline;
+        private final int percent;
+        private final Duration minimumIncrease;
+
+        private DurationBaselineOptions(Path baseline, int percent, Duration minimumIncrease) {
+            this.baseline = baseline;
+            this.percent = percent;
+            this.minimumIncrease = minimumIncrease;
+        }
+    }
+
+    /**
+     * The configuration of a writer, as built by a {@link Builder}.
+     */
+    static final class Options {
+        private final Set<TeamCityFeature> features;
+        private final List<Consumer<EnvelopeRouter.Builder>> handlers;
+        private final int progressEveryTestCases;
+        private final @Nullable Duration progressInterval;
+        private final long attachmentLimit;
+        private final long testCaseAttachmentLimit;
+        private final @Nullable Path attachmentOverflowDirectory;
+        private final @Nullable Executor renderingExecutor;
+        private final int slowestScenarios;
+        private final @Nullable Duration stepWatchdogThreshold;
+        private final @Nullable LongSupplier stepWatchdogClock;
+        private final @Nullable StepDefinitionProfileOptions stepDefinitionProfile;
+        private final @Nullable DurationBaselineOptions durationBaseline;
+        private final @Nullable Path timingManifest;
+        private final @Nullable Duration passingHookThreshold;
+        private final int reorderWindowTestCases;
+        private final long reorderWindowBytes;
+        private final int compactionThreshold;
+        private final boolean printTestRun;
+
+        /**
+         * @param reorderWindowTestCases the number of test cases in the
+         *                               reorder window, or 0 when there is
+         *                               none
+         * @param reorderWindowBytes     the size of the reorder window
+         * @param printTestRun           whether the start and end of the
+         *                               test run are printed
+         */
+        private Options(Builder builder, int reorderWindowTestCases, long reorderWindowBytes, boolean printTestRun) {
+            this.features = unmodifiableSet(EnumSet.copyOf(builder.features));
+            this.handlers = List.copyOf(builder.handlers);
+            this.progressEveryTestCases = builder.progressEveryTestCases;
+            this.progressInterval = builder.progressInterval;
+            this.attachmentLimit = builder.attachmentLimit;
+            this.testCaseAttachmentLimit = builder.testCaseAttachmentLimit;
+            this.attachmentOverflowDirectory = builder.attachmentOverflowDirectory;
+            this.renderingExecutor = builder.renderingExecutor;
+            this.slowestScenarios = builder.slowestScenarios;
+            this.stepWatchdogThreshold = builder.stepWatchdogThreshold;
+            this.stepWatchdogClock = builder.stepWatchdogClock;
+            this.stepDefinitionProfile = builder.stepDefinitionProfile;
+            this.durationBaseline = builder.durationBaseline;
+            this.timingManifest = builder.timingManifest;
+            this.passingHookThreshold = builder.passingHookThreshold;
+            this.reorderWindowTestCases = reorderWindowTestCases;
+            this.reorderWindowBytes = reorderWindowBytes;
+            this.compactionThreshold = builder.compactionThreshold;
+            this.printTestRun = printTestRun;
+        }
+
+        boolean hasFeature(TeamCityFeature feature) {
+            return features.contains(feature);
+        }
+
+        Set<TeamCityFeature> getFeatures() {
+            return features;
+        }
+
+        @Nullable Executor getRenderingExecutor() {
+            return renderingExecutor;
+        }
+
+        boolean isPrintTestRun() {
+            return printTestRun;
+        }
+
+        ProgressThrottle createProgressThrottle() {
+            if (progressEveryTestCases == 0 && progressInterval == null) {
+                return ProgressThrottle.everyTestCase();
+            }
+            return new ProgressThrottle(progressEveryTestCases, progressInterval);
+        }
+
+        AttachmentLimiter createAttachmentLimiter() {
+            return new AttachmentLimiter(attachmentLimit, testCaseAttachmentLimit, attachmentOverflowDirectory);
+        }
+
+        @Nullable PassingHookCollapser createPassingHookCollapser() {
+            return passingHookThreshold == null ? null : new PassingHookCollapser(passingHookThreshold);
+        }
+
+        @Nullable ReorderWindow<TeamCityWriter.RenderedTestCase> createReorderWindow() {
+            if (reorderWindowTestCases == 0 || features.contains(PRINT_TEST_CASES_AFTER_TEST_RUN)) {
+                return null;
+            }
+            return new ReorderWindow<>(reorderWindowTestCases, reorderWindowBytes);
+        }
     }
 
     public static final class Builder {
 
         private final EnumSet<TeamCityFeature> features = EnumSet.noneOf(TeamCityFeature.class);
+        private final List<Supplier<MessageSink>> sinks = new ArrayList<>();
+        private final List<Consumer<EnvelopeRouter.Builder>> handlers = new ArrayList<>();
+        private int progressEveryTestCases;
+        private @Nullable Duration progressInterval;
+        private long attachmentLimit = AttachmentLimiter.UNLIMITED;
+        private long testCaseAttachmentLimit = AttachmentLimiter.UNLIMITED;
+        private @Nullable Path attachmentOverflowDirectory;
+        private @Nullable Executor renderingExecutor;
+        private int slowestScenarios = 10;
+        private @Nullable Duration stepWatchdogThreshold;
+        private @Nullable LongSupplier stepWatchdogClock;
+        private @Nullable StepDefinitionProfileOptions stepDefinitionProfile;
+        private @Nullable DurationBaselineOptions durationBaseline;
+        private @Nullable Path timingManifest;
+        private @Nullable Duration passingHookThreshold;
+        private int reorderWindowTestCases;
+        private int compactionThreshold = CompactingRepository.DEFAULT_COMPACTION_THRESHOLD;
+        private long reorderWindowBytes;
+        private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+        private long overloadWatermark;
 
         private Builder() {
         }
@@ -111,10 +457,486 @@ public final class MessagesToTeamCityWriter implements AutoCloseable {
             return this;
         }
 
+        /**
+         * Prints the {@code customProgressStatus} messages for every
+         * {@code n}-th test case rather than for every test case.
+         * <p>
+         * The messages that start and stop the progress counter are always
+         * printed.
+         *
+         * @param testCases the number of test cases per progress message
+         */
+        public Builder progressEvery(int testCases) {
+            if (testCases < 1) {
+                throw new IllegalArgumentException("testCases must be at least 1, but was " + testCases);
+            }
+            this.progressEveryTestCases = testCases;
+            return this;
+        }
+
+        /**
+         * Prints the {@code customProgressStatus} messages at most once per
+         * {@code interval} rather than for every test case.
+         * <p>
+         * The interval is measured using the timestamps in the Cucumber
+         * messages. When combined with {@link #progressEvery(int)} a
+         * message is printed when either of the two is reached.
+         *
+         * @param interval the minimum time between progress messages
+         */
+        public Builder progressInterval(Duration interval) {
+            requireNonNull(interval);
+            if (interval.isNegative()) {
+                throw new IllegalArgumentException("interval must not be negative, but was " + interval);
+            }
+            this.progressInterval = interval;
+            return this;
+        }
+
+        /**
+         * Limits the size of a single text attachment.
+         * <p>
+         * Text beyond the limit is truncated, or written to the
+         * {@link #attachmentOverflowDirectory(Path) overflow directory}.
+         *
+         * @param bytes the maximum number of UTF-8 encoded bytes
+         */
+        public Builder attachmentLimit(long bytes) {
+            this.attachmentLimit = requirePositive(bytes);
+            return this;
+        }
+
+        /**
+         * Limits the combined size of the text attachments of a single test
+         * case.
+         * <p>
+         * Text beyond the limit is truncated, or written to the
+         * {@link #attachmentOverflowDirectory(Path) overflow directory}.
+         *
+         * @param bytes the maximum number of UTF-8 encoded bytes
+         */
+        public Builder testCaseAttachmentLimit(long bytes) {
+            this.testCaseAttachmentLimit = requirePositive(bytes);
+            return this;
+        }
+
+        /**
+         * Writes text attachments that exceed a limit to a file in
+         * {@code directory} rather than truncating them. The message refers
+         * to the file instead.
+         *
+         * @param directory the directory to write the attachments to
+         */
+        public Builder attachmentOverflowDirectory(Path directory) {
+            this.attachmentOverflowDirectory = requireNonNull(directory);
+            return this;
+        }
+
+        private static long requirePositive(long bytes) {
+            if (bytes < 1) {
+                throw new IllegalArgumentException("bytes must be at least 1, but was " + bytes);
+            }
+            return bytes;
+        }
+
+        /**
+         * Renders the test cases in parallel on {@code executor} when
+         * printing test cases after the test run.
+         * <p>
+         * The output is identical to rendering the test cases sequentially.
+         * The executor is not shut down when the writer is closed.
+         *
+         * @param executor the executor to render test cases on
+         * @see TeamCityFeature#PRINT_TEST_CASES_AFTER_TEST_RUN
+         */
+        public Builder renderingExecutor(Executor executor) {
+            this.renderingExecutor = requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Sets the number of slowest scenarios to print. Defaults to 10.
+         *
+         * @param scenarios the number of scenarios, may be 0
+         * @see TeamCityFeature#PRINT_DURATION_STATISTICS
+         */
+        public Builder slowestScenarios(int scenarios) {
+            if (scenarios < 0) {
+                throw new IllegalArgumentException("scenarios must not be negative, but was " + scenarios);
+            }
+            this.slowestScenarios = scenarios;
+            return this;
+        }
+
+        /**
+         * Prints a {@code message} with status {@code WARNING} when a step
+         * has been running for longer than {@code threshold}.
+         * <p>
+         * Steps are watched using the wall clock, from the moment their
+         * {@code TestStepStarted} message is written. Each step is warned
+         * about at most once. When test cases are executed in parallel, the
+         * running step of each test case is watched.
+         *
+         * @param threshold the time after which a running step is reported
+         */
+        public Builder stepWatchdog(Duration threshold) {
+            requireNonNull(threshold);
+            if (threshold.isNegative() || threshold.isZero()) {
+                throw new IllegalArgumentException("threshold must be positive, but was " + threshold);
+            }
+            this.stepWatchdogThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Measures running steps with {@code nanoTime} rather than the system
+         * clock, and does not check them periodically. Steps are only checked
+         * when {@link MessagesToTeamCityWriter#checkRunningSteps()} is
+         * invoked.
+         */
+        Builder stepWatchdogClock(LongSupplier nanoTime) {
+            this.stepWatchdogClock = requireNonNull(nanoTime);
+            return this;
+        }
+
+        /**
+         * Profiles the time spent in step definitions and hooks, and prints
+         * the {@code top} step definitions and hooks with the largest total
+         * duration after the test run has concluded.
+         *
+         * @param top    the number of step definitions and hooks to print
+         * @param output how to print the profile
+         */
+        public Builder stepDefinitionProfile(int top, ProfileOutput output) {
+            requireNonNull(output);
+            this.stepDefinitionProfile = new StepDefinitionProfileOptions(requireTop(top), output, null);
+            return this;
+        }
+
+        /**
+         * Profiles the time spent in step definitions and hooks, and writes
+         * the {@code top} step definitions and hooks with the largest total
+         * duration to {@code artifact} after the test run has concluded. The
+         * file is then published with a {@code publishArtifacts} message.
+         * <p>
+         * When the file can not be written, the profile is printed as a
+         * {@code message} instead.
+         *
+         * @param top      the number of step definitions and hooks to write
+         * @param artifact the file to write the profile to
+         */
+        public Builder stepDefinitionProfile(int top, Path artifact) {
+            requireNonNull(artifact);
+            this.stepDefinitionProfile = new StepDefinitionProfileOptions(requireTop(top), ProfileOutput.MESSAGE,
+                    artifact);
+            return this;
+        }
+
+        private static int requireTop(int top) {
+            if (top < 1) {
+                throw new IllegalArgumentException("top must be at least 1, but was " + top);
+            }
+            return top;
+        }
+
+        /**
+         * Compares the duration of each scenario that passed to its duration
+         * in {@code baseline}, and prints a warning when it got slower by
+         * more than {@code percent} percent and at least
+         * {@code minimumIncrease}.
+         * <p>
+         * Scenarios are identified by the {@code uri:line} of their pickle.
+         * When the test run finished message is written, the number of
+         * regressions is printed as a {@code buildStatisticValue} message,
+         * and the baseline is updated with the durations of the scenarios
+         * that passed. A missing baseline is created. A baseline that can
+         * not be read or written is reported with a warning.
+         *
+         * @param baseline        the file with the durations of an earlier run
+         * @param percent         the increase in percent up to which a
+         *                        scenario is not considered slower
+         * @param minimumIncrease the increase below which a scenario is not
+         *                        considered slower, may be 0
+         */
+        public Builder durationBaseline(Path baseline, int percent, Duration minimumIncrease) {
+            requireNonNull(baseline);
+            requireNonNull(minimumIncrease);
+            if (percent < 0) {
+                throw new IllegalArgumentException("percent must not be negative, but was " + percent);
+            }
+            if (minimumIncrease.isNegative()) {
+                throw new IllegalArgumentException("minimumIncrease must not be negative, but was " + minimumIncrease);
+            }
+            this.durationBaseline = new DurationBaselineOptions(baseline, percent, minimumIncrease);
+            return this;
+        }
+
+        /**
+         * Writes the uri, line, name, duration and status of each scenario
+         * to {@code manifest} after the test run, and publishes it as an
+         * artifact.
+         * <p>
+         * Manifests of several runs can be merged into average durations with
+         * {@link TimingManifest#merge(List, Path, int)}, for example to split
+         * the next run into shards that take about as long.
+         *
+         * @param manifest the file to write the timings to
+         */
+        public Builder timingManifest(Path manifest) {
+            this.timingManifest = requireNonNull(manifest);
+            return this;
+        }
+
+        /**
+         * Does not print hooks that passed within {@code threshold}.
+         * <p>
+         * Hooks that failed, were skipped with a message, took longer than
+         * {@code threshold} or attached something are printed as usual. When
+         * printing in real time, the messages of a hook are held back until
+         * the hook has finished.
+         *
+         * @param threshold the duration up to which a passing hook is not
+         *                  printed, may be 0
+         */
+        public Builder collapsePassingHooks(Duration threshold) {
+            requireNonNull(threshold);
+            if (threshold.isNegative()) {
+                throw new IllegalArgumentException("threshold must not be negative, but was " + threshold);
+            }
+            this.passingHookThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Holds finished test cases in a window, and prints them in the same
+         * order as {@link TeamCityFeature#PRINT_TEST_CASES_AFTER_TEST_RUN}
+         * would, as far as the window allows.
+         * <p>
+         * Test cases are printed once they have finished and no test case
+         * that comes before them is still to run or running. When the window holds
+         * more than {@code testCases} test cases, or more than {@code bytes}
+         * of rendered messages, the first test case is printed regardless.
+         * This keeps the output of parallel test runs readable, while the
+         * delay and memory are bounded by the window.
+         * <p>
+         * Does not apply in combination with
+         * {@link TeamCityFeature#PRINT_TEST_CASES_AFTER_TEST_RUN}.
+         *
+         * @param testCases the number of finished test cases to hold
+         * @param bytes     the size of the finished test cases to hold
+         */
+        public Builder reorderWindow(int testCases, long bytes) {
+            if (testCases < 1) {
+                throw new IllegalArgumentException("testCases must be at least 1, but was " + testCases);
+            }
+            if (bytes < 1) {
+                throw new IllegalArgumentException("bytes must be at least 1, but was " + bytes);
+            }
+            this.reorderWindowTestCases = testCases;
+            this.reorderWindowBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the minimum number of messages added between discarding the
+         * messages of finished test cases when printing in real time or in
+         * a reorder window.
+         */
+        Builder compactionThreshold(int messages) {
+            if (messages < 0) {
+                throw new IllegalArgumentException("messages must not be negative, but was " + messages);
+            }
+            this.compactionThreshold = messages;
+            return this;
+        }
+
+        /**
+         * Adds a handler for messages of {@code messageType}, e.g.
+         * {@code TestStepFinished.class}.
+         * <p>
+         * The handler is invoked for each message as soon as it is written,
+         * before it is printed. Handlers for the same type are invoked in
+         * order of registration.
+         *
+         * @param messageType the type of message to handle
+         * @param handler     the handler
+         * @throws IllegalArgumentException if {@code messageType} is not a
+         *                                  message in an envelope
+         */
+        public <T> Builder handler(Class<T> messageType, Consumer<? super T> handler) {
+            requireNonNull(messageType);
+            requireNonNull(handler);
+            if (!EnvelopeRouter.isRoutable(messageType)) {
+                throw new IllegalArgumentException(messageType.getName() + " is not a message in an envelope");
+            }
+            handlers.add(router -> router.on(messageType, handler));
+            return this;
+        }
+
+        /**
+         * Adds a sink to write the messages to.
+         * <p>
+         * Messages are rendered once and written to every sink. When there
+         * is more than one sink, each sink is written to from its own thread
+         * so that a slow sink does not hold up the others.
+         *
+         * @param out         the sink
+         * @param flushPolicy when to flush the sink
+         */
+        public Builder sink(OutputStream out, FlushPolicy flushPolicy) {
+            requireNonNull(out);
+            requireNonNull(flushPolicy);
+            sinks.add(() -> new OutputStreamSink(out, flushPolicy));
+            return this;
+        }
+
+        /**
+         * Adds a channel to write the messages to.
+         * <p>
+         * Messages are collected in direct buffers and written to the channel
+         * with gathering writes. The channel must be in blocking mode.
+         *
+         * @param channel     the sink
+         * @param flushPolicy when to write the buffered messages to the channel
+         * @see #sink(OutputStream, FlushPolicy)
+         */
+        public Builder sink(WritableByteChannel channel, FlushPolicy flushPolicy) {
+            requireNonNull(channel);
+            requireNonNull(flushPolicy);
+            sinks.add(() -> new ChannelSink(channel, flushPolicy));
+            return this;
+        }
+
+        /**
+         * Sets what to do when a sink can not keep up with the messages.
+         * Defaults to {@link OverloadPolicy#BLOCK}.
+         * <p>
+         * With any other policy, each sink is written to from its own thread.
+         * Once the messages buffered for a sink exceed {@code watermarkBytes}
+         * the policy is applied. Once they exceed twice the watermark,
+         * writing blocks until the sink catches up.
+         *
+         * @param policy         the policy
+         * @param watermarkBytes the number of buffered bytes at which the
+         *                       policy is applied
+         */
+        public Builder overloadPolicy(OverloadPolicy policy, long watermarkBytes) {
+            requireNonNull(policy);
+            if (watermarkBytes < 1 || watermarkBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(
+                        "watermarkBytes must be between 1 and " + Integer.MAX_VALUE + ", but was " + watermarkBytes);
+            }
+            this.overloadPolicy = policy;
+            this.overloadWatermark = watermarkBytes;
+            return this;
+        }
+
+        /**
+         * Builds a writer that writes to {@code out}, and any sinks added with
+         * {@link #sink(OutputStream, FlushPolicy)}. The {@code out} stream is
+         * flushed after every message.
+         */
         public MessagesToTeamCityWriter build(OutputStream out) {
             requireNonNull(out);
-            Set<TeamCityFeature> features = EnumSet.copyOf(this.features);
-            return new MessagesToTeamCityWriter(out, features);
+            List<MessageSink> sinks = new ArrayList<>();
+            sinks.add(new OutputStreamSink(out, FlushPolicy.EVERY_MESSAGE));
+            return build(sinks);
+        }
+
+        /**
+         * Builds a writer that writes to {@code channel}, and any sinks added
+         * with {@link #sink(OutputStream, FlushPolicy)}. Like
+         * {@link #build(OutputStream)}, messages are written to the
+         * {@code channel} after every message.
+         */
+        public MessagesToTeamCityWriter build(WritableByteChannel channel) {
+            return build(channel, FlushPolicy.EVERY_MESSAGE);
+        }
+
+        /**
+         * Builds a writer that writes to {@code channel}, and any sinks added
+         * with {@link #sink(OutputStream, FlushPolicy)}.
+         * <p>
+         * With {@link FlushPolicy#ON_CLOSE} messages are written to the
+         * {@code channel} when its buffers are full and when the writer is
+         * closed. This suits files, but delays the output of pipes and
+         * sockets.
+         *
+         * @param channel     the channel to write to
+         * @param flushPolicy when to write the buffered messages to the channel
+         */
+        public MessagesToTeamCityWriter build(WritableByteChannel channel, FlushPolicy flushPolicy) {
+            requireNonNull(channel);
+            requireNonNull(flushPolicy);
+            List<MessageSink> sinks = new ArrayList<>();
+            sinks.add(new ChannelSink(channel, flushPolicy));
+            return build(sinks);
+        }
+
+        /**
+         * Builds a writer that writes to the sinks added with
+         * {@link #sink(OutputStream, FlushPolicy)}.
+         */
+        public MessagesToTeamCityWriter build() {
+            if (sinks.isEmpty()) {
+                throw new IllegalStateException("No sinks were added");
+            }
+            return build(new ArrayList<>());
+        }
+
+        private MessagesToTeamCityWriter build(List<MessageSink> sinks) {
+            this.sinks.forEach(sink -> sinks.add(sink.get()));
+            return new MessagesToTeamCityWriter(new TeamCityCommandWriter(isolate(sinks)),
+                    new Options(this, reorderWindowTestCases, reorderWindowBytes, true));
+        }
+
+        /**
+         * Builds a writer for a single shard of a merged test run. Writes only
+         * the messages of the test cases to {@code sink}, and adds the
+         * {@code flowId} to every message. The test run itself is printed by
+         * the merger.
+         */
+        MessagesToTeamCityWriter buildFlow(MessageSink sink, String flowId) {
+            return new MessagesToTeamCityWriter(new TeamCityCommandWriter(List.of(sink), flowId),
+                    new Options(this, reorderWindowTestCases, reorderWindowBytes, false));
+        }
+
+        /**
+         * Builds a writer for the test cases of all shards of a merged test
+         * run. Writes only to {@code sink}. Unless test cases are printed
+         * after the test run, they are held in the reorder window of this
+         * builder, or when none was set, in a window of {@code testCases} test
+         * cases and {@code bytes}.
+         */
+        MessagesToTeamCityWriter buildMerged(MessageSink sink, int testCases, long bytes) {
+            Options options = reorderWindowTestCases == 0
+                    ? new Options(this, testCases, bytes, true)
+                    : new Options(this, reorderWindowTestCases, reorderWindowBytes, true);
+            return new MessagesToTeamCityWriter(new TeamCityCommandWriter(List.of(sink)), options);
+        }
+
+        /**
+         * Whether the writer writes to files other than the sinks, which
+         * several writers can not share.
+         */
+        boolean hasFileOutputs() {
+            return (stepDefinitionProfile != null && stepDefinitionProfile.artifact != null)
+                    || durationBaseline != null
+                    || timingManifest != null;
+        }
+
+        private List<MessageSink> isolate(List<MessageSink> sinks) {
+            if (sinks.size() == 1 && overloadPolicy == OverloadPolicy.BLOCK) {
+                return sinks;
+            }
+            List<MessageSink> isolated = new ArrayList<>(sinks.size());
+            for (int i = 0; i < sinks.size(); i++) {
+                String name = "teamcity-formatter-sink-" + i;
+                isolated.add(overloadPolicy == OverloadPolicy.BLOCK
+                        ? new IsolatedSink(sinks.get(i), IsolatedSink.DEFAULT_CAPACITY, name)
+                        : new OverloadedSink(sinks.get(i), overloadPolicy, overloadWatermark, name));
+            }
+            return isolated;
         }
     }
 }
@@ -8,7 +8,11 @@ import static java.util.Comparator.naturalOrder;
 import static java.util.Comparator.nullsFirst;
 import static java.util.Objects.requireNonNull;
 
-final class OrderableEvent<T> implements Comparable<OrderableEvent<T>> {
+final class OrderableEvent<T> implements Comparable<OrderableEvent<?>> {
+    private static final Comparator<OrderableEvent<?>> CANONICAL_ORDER = Comparator
+            .comparing((OrderableEvent<?> ord) -> ord.uri, nullsFirst(naturalOrder()))
+            .thenComparing(ord -> ord.line, nullsFirst(naturalOrder()));
+
     private final T event;
     private final @Nullable String uri;
     private final @Nullable Integer line;
@@ -19,13 +23,9 @@ final class OrderableEvent<T> implements Comparable<OrderableEvent<T>> {
         this.line = line;
     }
 
-    private final Comparator<OrderableEvent<T>> comparing = Comparator
-            .comparing((OrderableEvent<T> ord) -> ord.uri, nullsFirst(naturalOrder()))
-            .thenComparing(ord -> ord.line, nullsFirst(naturalOrder()));
-
     @Override
-    public int compareTo(OrderableEvent<T> o) {
-        return comparing.compare(this, o);
+    public int compareTo(OrderableEvent<?> o) {
+        return CANONICAL_ORDER.compare(this, o);
     }
 
     T getEvent() {
@@ -0,0 +1,47 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy.EVERY_MESSAGE;
+import static java.util.Objects.requireNonNull;
+
+final class OutputStreamSink implements MessageSink {
+
+    private final OutputStream out;
+    private final FlushPolicy flushPolicy;
+    private boolean failed;
+
+    OutputStreamSink(OutputStream out, FlushPolicy flushPolicy) {
+        this.flushPolicy = requireNonNull(flushPolicy);
+        this.out = flushPolicy == EVERY_MESSAGE ? requireNonNull(out) : new BufferedOutputStream(requireNonNull(out));
+    }
+
+    @Override
+    public void write(byte[] message) {
+        if (failed) {
+            return;
+        }
+        try {
+            out.write(message);
+            if (flushPolicy == EVERY_MESSAGE) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Like a PrintWriter, stop writing to a broken stream.
+            failed = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.OverloadPolicy;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_WARNING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes to a delegate sink on a dedicated thread, and sheds or coalesces
+ * messages when the delegate can not keep up.
+ * <p>
+ * Messages are buffered until the delegate has written them. Once the
+ * buffered messages exceed the watermark, the sink is overloaded and applies
+ * its {@link OverloadPolicy}. Once they exceed twice the watermark,
+ * {@link #write(byte[], MessagePriority)} blocks until the delegate catches
+ * up.
+ * <p>
+ * A delegate that throws is not written to again. The remaining messages are
+ * discarded, so neither the formatter nor {@link #close()} wait for it.
+ */
+final class OverloadedSink implements MessageSink {
+
+    // Largest array that can be allocated on common JVMs
+    private static final long MAX_COALESCED_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final MessageSink delegate;
+    private final OverloadPolicy policy;
+    private final long watermark;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<byte[]> queue = new ArrayDeque<>();
+    private final Thread thread;
+    private long bufferedBytes;
+    private byte @Nullable [] deferredStarted;
+    private long shed;
+    private boolean closed;
+    private volatile boolean failed;
+
+    OverloadedSink(MessageSink delegate, OverloadPolicy policy, long watermark, String name) {
+        this.delegate = requireNonNull(delegate);
+        this.policy = requireNonNull(policy);
+        this.watermark = watermark;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void write(byte[] message) {
+        write(message, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public void write(byte[] message, MessagePriority priority) {
+        if (failed) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (policy == OverloadPolicy.SHED && shed(message, priority)) {
+                return;
+            }
+            enqueueDeferredStarted();
+            enqueue(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean shed(byte[] message, MessagePriority priority) {
+        switch (priority) {
+            case LOW -> {
+                if (isOverloaded()) {
+                    shed++;
+                    return true;
+                }
+            }
+            case LOW_STARTED -> {
+                if (isOverloaded()) {
+                    enqueueDeferredStarted();
+                    deferredStarted = message;
+                    return true;
+                }
+            }
+            case LOW_FINISHED -> {
+                if (deferredStarted != null) {
+                    deferredStarted = null;
+                    shed += 2;
+                    return true;
+                }
+            }
+            default -> {
+            }
+        }
+        return false;
+    }
+
+    long getShed() {
+        lock.lock();
+        try {
+            return shed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isOverloaded() {
+        return bufferedBytes >= watermark;
+    }
+
+    private void enqueueDeferredStarted() {
+        byte[] started = deferredStarted;
+        if (started != null) {
+            deferredStarted = null;
+            enqueue(started);
+        }
+    }
+
+    private void enqueue(byte[] message) {
+        try {
+            while (bufferedBytes >= 2 * watermark && !closed) {
+                notFull.await();
+            }
+        } catch (InterruptedException e) {
+            // Never lose a message, enqueue it regardless
+            Thread.currentThread().interrupt();
+        }
+        queue.add(message);
+        bufferedBytes += message.length;
+        notEmpty.signal();
+    }
+
+    private void run() {
+        try {
+            byte[] messages;
+            while ((messages = take()) != null) {
+                write(delegate, messages);
+            }
+            if (getShed() > 0) {
+                String report = TEMPLATE_WARNING.formatted(
+                        "Shed %d low priority messages, the output could not keep up".formatted(getShed()))
+                        + System.lineSeparator();
+                write(delegate, report.getBytes(UTF_8));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(delegate);
+        }
+    }
+
+    private void write(MessageSink delegate, byte[] messages) {
+        if (failed) {
+            return;
+        }
+        try {
+            delegate.write(messages);
+        } catch (RuntimeException e) {
+            // Like a PrintWriter, stop writing to a broken sink.
+            failed = true;
+        }
+    }
+
+    private void close(MessageSink delegate) {
+        try {
+            delegate.close();
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Takes the next message, or when coalescing while overloaded, all
+     * buffered messages at once. Returns {@code null} once closed and empty.
+     */
+    private byte @Nullable [] take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (queue.isEmpty()) {
+                return null;
+            }
+            byte[] messages = policy == OverloadPolicy.COALESCE && isOverloaded()
+                    ? drainQueue()
+                    : queue.remove();
+            bufferedBytes -= messages.length;
+            notFull.signalAll();
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] drainQueue() {
+        int count = 0;
+        long length = 0;
+        for (byte[] message : queue) {
+            if (count > 0 && length + message.length > MAX_COALESCED_LENGTH) {
+                break;
+            }
+            count++;
+            length += message.length;
+        }
+        byte[] messages = new byte[(int) length];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] message = queue.remove();
+            System.arraycopy(message, 0, messages, position, message.length);
+            position += message.length;
+        }
+        return messages;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            enqueueDeferredStarted();
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Exception;
+import io.cucumber.messages.types.TestStep;
+import io.cucumber.messages.types.TestStepResult;
+import io.cucumber.messages.types.TestStepStarted;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static io.cucumber.messages.Convertor.toDuration;
+
+/**
+ * Decides which hook steps are not printed.
+ * <p>
+ * A hook that passed, or was skipped without a message, within the threshold
+ * and did not attach anything is folded into its test case. All other hooks
+ * are printed as usual.
+ * <p>
+ * When printing in real time, the outcome of a hook is not known when it
+ * starts. The started message and any attachments are held back until the
+ * hook has finished.
+ */
+final class PassingHookCollapser {
+
+    private final Duration threshold;
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<PendingHook> pendingHooksByTestCaseStartedId = new IdRegistry.Index<>();
+
+    PassingHookCollapser(Duration threshold) {
+        this.threshold = threshold;
+    }
+
+    boolean isCollapsible(TestStep testStep, TestStepResult result, boolean hasAttachments) {
+        if (testStep.getHookId().isEmpty() || hasAttachments) {
+            return false;
+        }
+        if (toDuration(result.getDuration()).compareTo(threshold) > 0) {
+            return false;
+        }
+        return switch (result.getStatus()) {
+            case PASSED -> true;
+            case SKIPPED -> result.getException().flatMap(Exception::getMessage).isEmpty();
+            default -> false;
+        };
+    }
+
+    void hold(TestStepStarted testStepStarted) {
+        pendingHooksByTestCaseStartedId.put(
+                testCaseStartedIds.register(testStepStarted.getTestCaseStartedId()), new PendingHook(testStepStarted));
+    }
+
+    /**
+     * Holds back the attachment message if it belongs to a pending hook.
+     */
+    boolean holdAttachment(String testCaseStartedId, String testStepId, String message) {
+        PendingHook pendingHook = pendingHooksByTestCaseStartedId.get(testCaseStartedIds.find(testCaseStartedId));
+        if (pendingHook == null || !pendingHook.testStepStarted.getTestStepId().equals(testStepId)) {
+            return false;
+        }
+        pendingHook.attachments.add(message);
+        return true;
+    }
+
+    Optional<PendingHook> release(String testCaseStartedId) {
+        return Optional.ofNullable(pendingHooksByTestCaseStartedId.remove(
+                testCaseStartedIds.release(testCaseStartedId)));
+    }
+
+    static final class PendingHook {
+        private final TestStepStarted testStepStarted;
+        private final List<String> attachments = new ArrayList<>();
+
+        private PendingHook(TestStepStarted testStepStarted) {
+            this.testStepStarted = testStepStarted;
+        }
+
+        TestStepStarted getTestStepStarted() {
+            return testStepStarted;
+        }
+
+        List<String> getAttachments() {
+            return attachments;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package io.cucumber.teamcityformatter;
 import io.cucumber.messages.types.Examples;
 import io.cucumber.messages.types.Feature;
 import io.cucumber.messages.types.GherkinDocument;
+import io.cucumber.messages.types.Location;
 import io.cucumber.messages.types.Pickle;
 import io.cucumber.messages.types.Rule;
 import io.cucumber.messages.types.Scenario;
@@ -12,16 +13,44 @@ import org.jspecify.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.FLATTEN_EXAMPLES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.FLATTEN_RULES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.FLATTEN_SCENARIO_OUTLINES;
 import static java.util.Objects.requireNonNull;
 
+/**
+ * Collects the path from a feature to a pickle.
+ * <p>
+ * Levels that are flattened do not become a node. Instead, their name is
+ * folded into the name of the next node.
+ */
 final class PathCollector implements LineageReducer.Collector<List<LineageNode>> {
+    private static final String FOLDED_NAME_SEPARATOR = " > ";
+
     // There are at most 5 levels to a feature file.
     private final List<LineageNode> lineage = new ArrayList<>(5);
+    private final boolean flattenRules;
+    private final boolean flattenExamples;
+    private final boolean flattenScenarioOutlines;
     private @Nullable String uri;
     private @Nullable String scenarioName;
+    private @Nullable String foldedName;
     private int examplesIndex;
     private boolean isExample;
+    private boolean isFlattenedScenarioOutline;
+
+    PathCollector(Set<MessagesToTeamCityWriter.TeamCityFeature> features) {
+        this(features.contains(FLATTEN_RULES), features.contains(FLATTEN_EXAMPLES),
+                features.contains(FLATTEN_SCENARIO_OUTLINES));
+    }
+
+    private PathCollector(boolean flattenRules, boolean flattenExamples, boolean flattenScenarioOutlines) {
+        this.flattenRules = flattenRules;
+        this.flattenExamples = flattenExamples;
+        this.flattenScenarioOutlines = flattenScenarioOutlines;
+    }
 
     private String getRequiredUri() {
         return requireNonNull(uri);
@@ -35,34 +64,47 @@ final class PathCollector implements LineageReducer.Collector<List<LineageNode>>
     @Override
     public void add(Feature feature) {
         String name = getNameOrKeyword(feature.getName(), feature.getKeyword());
-        lineage.add(new LineageNode(name, getRequiredUri(), feature.getLocation()));
+        addNode(name, feature.getLocation());
     }
 
     @Override
     public void add(Rule rule) {
+        if (flattenRules) {
+            fold(rule.getName());
+            return;
+        }
         String name = getNameOrKeyword(rule.getName(), rule.getKeyword());
-        lineage.add(new LineageNode(name, getRequiredUri(), rule.getLocation()));
+        addNode(name, rule.getLocation());
     }
 
     @Override
     public void add(Scenario scenario) {
         String name = getNameOrKeyword(scenario.getName(), scenario.getKeyword());
-        lineage.add(new LineageNode(name, getRequiredUri(), scenario.getLocation()));
         scenarioName = name;
+        if (flattenScenarioOutlines && !scenario.getExamples().isEmpty()) {
+            isFlattenedScenarioOutline = true;
+            fold(scenario.getName());
+            return;
+        }
+        addNode(name, scenario.getLocation());
     }
 
     @Override
     public void add(Examples examples, int index) {
-        String name = getNameOrKeyword(examples.getName(), examples.getKeyword());
-        lineage.add(new LineageNode(name, getRequiredUri(), examples.getLocation()));
         examplesIndex = index;
+        if (flattenExamples || isFlattenedScenarioOutline) {
+            fold(examples.getName());
+            return;
+        }
+        String name = getNameOrKeyword(examples.getName(), examples.getKeyword());
+        addNode(name, examples.getLocation());
     }
 
     @Override
     public void add(TableRow example, int index) {
         isExample = true;
         String name = "#" + (examplesIndex + 1) + "." + (index + 1);
-        lineage.add(new LineageNode(name, getRequiredUri(), example.getLocation()));
+        addNode(name, example.getLocation());
     }
 
     @Override
@@ -86,6 +128,20 @@ final class PathCollector implements LineageReducer.Collector<List<LineageNode>>
         return lineage;
     }
 
+    private void fold(String name) {
+        // Keywords without a name add nothing but noise.
+        if (name.isEmpty()) {
+            return;
+        }
+        foldedName = foldedName == null ? name : foldedName + FOLDED_NAME_SEPARATOR + name;
+    }
+
+    private void addNode(String name, Location location) {
+        String nodeName = foldedName == null ? name : foldedName + FOLDED_NAME_SEPARATOR + name;
+        foldedName = null;
+        lineage.add(new LineageNode(nodeName, getRequiredUri(), location));
+    }
+
     private static String getNameOrKeyword(String name, String keyword) {
         if (!name.isEmpty()) {
             return name;
@@ -0,0 +1,73 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.Convertor;
+import io.cucumber.messages.types.Timestamp;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Decides which {@code customProgressStatus} messages are printed.
+ * <p>
+ * A message is printed once every {@code n} test cases, or once the
+ * {@code interval} has elapsed since the previously printed message. The time
+ * is taken from the Cucumber messages, not the wall clock, so the output
+ * remains reproducible.
+ */
+final class ProgressThrottle {
+
+    private final Counter started;
+    private final Counter finished;
+
+    ProgressThrottle(int everyTestCases, @Nullable Duration interval) {
+        this.started = new Counter(everyTestCases, interval);
+        this.finished = new Counter(everyTestCases, interval);
+    }
+
+    static ProgressThrottle everyTestCase() {
+        return new ProgressThrottle(1, null);
+    }
+
+    boolean isTestStartedDue(Timestamp timestamp) {
+        return started.isDue(timestamp);
+    }
+
+    boolean isTestFinishedDue(Timestamp timestamp) {
+        return finished.isDue(timestamp);
+    }
+
+    private static final class Counter {
+        private final int everyTestCases;
+        private final @Nullable Duration interval;
+        private int pending;
+        private @Nullable Instant lastPrinted;
+
+        private Counter(int everyTestCases, @Nullable Duration interval) {
+            this.everyTestCases = everyTestCases;
+            this.interval = interval;
+        }
+
+        boolean isDue(Timestamp timestamp) {
+            Instant now = Convertor.toInstant(timestamp);
+            pending++;
+            if (!isCountReached() && !isIntervalElapsed(now)) {
+                return false;
+            }
+            pending = 0;
+            lastPrinted = now;
+            return true;
+        }
+
+        private boolean isCountReached() {
+            return everyTestCases > 0 && pending >= everyTestCases;
+        }
+
+        private boolean isIntervalElapsed(Instant now) {
+            if (interval == null) {
+                return false;
+            }
+            return lastPrinted == null || !now.isBefore(lastPrinted.plus(interval));
+        }
+    }
+}
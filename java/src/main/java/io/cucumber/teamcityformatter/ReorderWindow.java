@@ -0,0 +1,127 @@
+package io.cucumber.teamcityformatter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Holds finished test cases until they can be printed in canonical order.
+ * <p>
+ * A finished test case is released once no test case that is still pending
+ * comes before it. A test case is pending from when it is known, or else
+ * from when it started, until its last attempt finished. When the window holds more than its capacity, by count
+ * or by bytes, the first test case is released regardless. So the output is
+ * mostly ordered, and the latency and memory are bounded by the size of the
+ * window.
+ * <p>
+ * Not thread safe.
+ *
+ * @param <T> the finished test case
+ */
+final class ReorderWindow<T> {
+
+    private final int capacity;
+    private final long capacityBytes;
+    private final NavigableSet<Held<T>> held = new TreeSet<>();
+    private final NavigableSet<Held<String>> running = new TreeSet<>();
+    private final Map<String, Held<String>> runningByTestCaseId = new HashMap<>();
+    private long heldBytes;
+    private long sequence;
+
+    ReorderWindow(int capacity, long capacityBytes) {
+        this.capacity = capacity;
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Marks a test case as pending. Marking it again, when it starts or for
+     * later attempts, keeps its place.
+     */
+    void started(OrderableEvent<String> testCaseId) {
+        runningByTestCaseId.computeIfAbsent(testCaseId.getEvent(), id -> {
+            Held<String> running = new Held<>(testCaseId, 0, sequence++);
+            this.running.add(running);
+            return running;
+        });
+    }
+
+    /**
+     * Holds a finished attempt of a test case.
+     *
+     * @param testCaseId  the test case the attempt belongs to
+     * @param finished    the finished attempt
+     * @param bytes       the size of the attempt
+     * @param lastAttempt whether the test case will not be retried
+     * @return the test cases that can be printed, in order
+     */
+    List<T> finished(String testCaseId, OrderableEvent<T> finished, long bytes, boolean lastAttempt) {
+        if (lastAttempt) {
+            Held<String> removed = runningByTestCaseId.remove(testCaseId);
+            if (removed != null) {
+                running.remove(removed);
+            }
+        }
+        held.add(new Held<>(finished, bytes, sequence++));
+        heldBytes += bytes;
+        List<T> released = new ArrayList<>();
+        while (!held.isEmpty() && (isOverCapacity() || isNext(held.first()))) {
+            released.add(release());
+        }
+        return released;
+    }
+
+    /**
+     * Releases all held test cases, in order.
+     */
+    List<T> finishedAll() {
+        List<T> released = new ArrayList<>(held.size());
+        while (!held.isEmpty()) {
+            released.add(release());
+        }
+        running.clear();
+        runningByTestCaseId.clear();
+        return released;
+    }
+
+    int size() {
+        return held.size();
+    }
+
+    private boolean isOverCapacity() {
+        return held.size() > capacity || heldBytes > capacityBytes;
+    }
+
+    private boolean isNext(Held<T> first) {
+        return running.isEmpty() || first.order.compareTo(running.first().order) <= 0;
+    }
+
+    private T release() {
+        Held<T> first = held.pollFirst();
+        heldBytes -= first.bytes;
+        return first.order.getEvent();
+    }
+
+    /**
+     * Ordered canonically, and otherwise in order of arrival.
+     */
+    private static final class Held<E> implements Comparable<Held<E>> {
+        private final OrderableEvent<E> order;
+        private final long bytes;
+        private final long sequence;
+
+        private Held(OrderableEvent<E> order, long bytes, long sequence) {
+            this.order = order;
+            this.bytes = bytes;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Held<E> o) {
+            int compared = order.compareTo(o.order);
+            return compared != 0 ? compared : Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Attachment;
+import io.cucumber.messages.types.Exception;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.messages.types.TestStepResult;
+import io.cucumber.messages.types.TestStepStarted;
+import io.cucumber.teamcityformatter.ClassifiedEnvelope.MessageType;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.Comparator.comparing;
+
+/**
+ * Holds back the messages of a test case attempt until it is known whether
+ * the attempt will be retried.
+ * <p>
+ * Attempts that will be retried are reduced to a {@link RetriedAttempts}
+ * summary and their messages are discarded. Only the messages of the final
+ * attempt are released.
+ */
+final class RetriedTestCaseCollapser {
+
+    // Only the attempts in progress are registered.
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<Attempt> attemptsByTestCaseStartedId = new IdRegistry.Index<>();
+    // Only test cases that were retried are retained.
+    private final IdRegistry retriedTestCaseIds = new IdRegistry();
+    private final IdRegistry.Index<RetriedAttempts> retriedAttemptsByTestCaseId = new IdRegistry.Index<>();
+    private final StringInterner interner;
+
+    RetriedTestCaseCollapser(StringInterner interner) {
+        this.interner = interner;
+    }
+
+    /**
+     * Returns the messages that can be released, in order of arrival.
+     */
+    List<ClassifiedEnvelope> collapse(ClassifiedEnvelope envelope) {
+        @Nullable String testCaseStartedId;
+        switch (envelope.getType()) {
+            case TEST_CASE_STARTED -> {
+                startAttempt(envelope, envelope.getMessage(TestCaseStarted.class));
+                return emptyList();
+            }
+            case TEST_CASE_FINISHED -> {
+                return finishAttempt(envelope, envelope.getMessage(TestCaseFinished.class));
+            }
+            case TEST_STEP_STARTED -> testCaseStartedId = envelope.getMessage(TestStepStarted.class)
+                    .getTestCaseStartedId();
+            case TEST_STEP_FINISHED -> testCaseStartedId = envelope.getMessage(TestStepFinished.class)
+                    .getTestCaseStartedId();
+            case ATTACHMENT -> testCaseStartedId = envelope.getMessage(Attachment.class)
+                    .getTestCaseStartedId()
+                    .orElse(null);
+            default -> testCaseStartedId = null;
+        }
+        Attempt attempt = testCaseStartedId == null
+                ? null
+                : attemptsByTestCaseStartedId.get(testCaseStartedIds.find(testCaseStartedId));
+        if (attempt == null) {
+            return singletonList(envelope);
+        }
+        attempt.envelopes.add(envelope);
+        return emptyList();
+    }
+
+    Optional<RetriedAttempts> findRetriedAttemptsBy(TestCaseStarted testCaseStarted) {
+        return Optional.ofNullable(retriedAttemptsByTestCaseId.get(
+                retriedTestCaseIds.find(testCaseStarted.getTestCaseId())));
+    }
+
+    private void startAttempt(ClassifiedEnvelope envelope, TestCaseStarted event) {
+        Attempt attempt = new Attempt(event.getTestCaseId());
+        attempt.envelopes.add(envelope);
+        attemptsByTestCaseStartedId.put(testCaseStartedIds.register(event.getId()), attempt);
+    }
+
+    private List<ClassifiedEnvelope> finishAttempt(ClassifiedEnvelope envelope, TestCaseFinished event) {
+        Attempt attempt = attemptsByTestCaseStartedId.remove(testCaseStartedIds.release(event.getTestCaseStartedId()));
+        if (attempt == null) {
+            return singletonList(envelope);
+        }
+        if (event.getWillBeRetried()) {
+            String failure = interner.intern(findFailureMessage(attempt.envelopes));
+            int testCaseId = retriedTestCaseIds.register(attempt.testCaseId);
+            RetriedAttempts existing = retriedAttemptsByTestCaseId.get(testCaseId);
+            retriedAttemptsByTestCaseId.put(testCaseId,
+                    existing == null ? new RetriedAttempts(1, failure) : existing.next(failure));
+            return emptyList();
+        }
+        attempt.envelopes.add(envelope);
+        return attempt.envelopes;
+    }
+
+    private static final class Attempt {
+        private final String testCaseId;
+        private final List<ClassifiedEnvelope> envelopes = new ArrayList<>();
+
+        private Attempt(String testCaseId) {
+            this.testCaseId = testCaseId;
+        }
+    }
+
+    private static String findFailureMessage(List<ClassifiedEnvelope> attempt) {
+        return attempt.stream()
+                .filter(envelope -> envelope.getType() == MessageType.TEST_STEP_FINISHED)
+                .map(envelope -> envelope.getMessage(TestStepFinished.class).getTestStepResult())
+                .max(comparing(TestStepResult::getStatus))
+                .map(result -> result.getException()
+                        .flatMap(Exception::getMessage)
+                        .orElseGet(() -> result.getStatus().name()))
+                .orElse("Unknown");
+    }
+
+    static final class RetriedAttempts {
+        private final int count;
+        private final String lastFailure;
+
+        RetriedAttempts(int count, String lastFailure) {
+            this.count = count;
+            this.lastFailure = lastFailure;
+        }
+
+        RetriedAttempts next(String failure) {
+            return new RetriedAttempts(count + 1, failure);
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        String getLastFailure() {
+            return lastFailure;
+        }
+    }
+}
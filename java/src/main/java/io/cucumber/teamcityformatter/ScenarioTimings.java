@@ -0,0 +1,111 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.Convertor;
+import io.cucumber.messages.types.Location;
+import io.cucumber.messages.types.Pickle;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.messages.types.TestStepResult;
+import io.cucumber.messages.types.TestStepResultStatus;
+import io.cucumber.query.Query;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_PUBLISH_ARTIFACTS;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_WARNING;
+import static java.util.Comparator.naturalOrder;
+
+/**
+ * Collects the duration and status of each scenario, and writes them to a
+ * {@link TimingManifest} after the test run.
+ * <p>
+ * The duration of a retried scenario includes all its attempts, the status
+ * is that of the last attempt. When the manifest can not be written, a
+ * warning is printed.
+ */
+final class ScenarioTimings implements TestRunReport {
+
+    private final Supplier<Query> query;
+    private final Path manifest;
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<StartedScenario> startedByTestCaseStartedId = new IdRegistry.Index<>();
+    private final Map<String, TimingManifest.Entry> entriesByLocation = new LinkedHashMap<>();
+    private final Map<String, Long> retriedMillisByLocation = new HashMap<>();
+
+    ScenarioTimings(Supplier<Query> query, Path manifest) {
+        this.query = query;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public void register(EnvelopeRouter.Builder router) {
+        router.on(TestCaseStarted.class, this::start)
+                .on(TestCaseFinished.class, this::record);
+    }
+
+    private void start(TestCaseStarted event) {
+        query.get().findPickleBy(event).ifPresent(pickle -> {
+            int line = query.get().findLocationOf(pickle).map(Location::getLine).orElse(0);
+            Instant started = Convertor.toInstant(event.getTimestamp());
+            startedByTestCaseStartedId.put(testCaseStartedIds.register(event.getId()),
+                    new StartedScenario(event, pickle, line, started));
+        });
+    }
+
+    private void record(TestCaseFinished event) {
+        StartedScenario started = startedByTestCaseStartedId.remove(
+                testCaseStartedIds.release(event.getTestCaseStartedId()));
+        if (started == null) {
+            return;
+        }
+        String location = started.pickle.getUri() + ":" + started.line;
+        long millis = Duration.between(started.timestamp, Convertor.toInstant(event.getTimestamp())).toMillis();
+        if (event.getWillBeRetried()) {
+            retriedMillisByLocation.merge(location, millis, Long::sum);
+            return;
+        }
+        Long retriedMillis = retriedMillisByLocation.remove(location);
+        long total = retriedMillis == null ? millis : retriedMillis + millis;
+        TestStepResultStatus status = query.get().findTestStepsFinishedBy(started.testCaseStarted).stream()
+                .map(TestStepFinished::getTestStepResult)
+                .map(TestStepResult::getStatus)
+                .max(naturalOrder())
+                .orElse(TestStepResultStatus.PASSED);
+        entriesByLocation.put(location, new TimingManifest.Entry(
+                started.pickle.getUri(), started.line, total, 1, status.name(), started.pickle.getName()));
+    }
+
+    @Override
+    public void print(TeamCityCommandWriter out) {
+        try {
+            TimingManifest.write(manifest, entriesByLocation.values());
+            out.print(TEMPLATE_PUBLISH_ARTIFACTS, manifest.toAbsolutePath());
+        } catch (IOException e) {
+            // The sharding of the next run falls back to its defaults.
+            out.print(TEMPLATE_WARNING, "Could not write the timing manifest %s: %s"
+                    .formatted(manifest.toAbsolutePath(), e));
+        }
+    }
+
+    private static final class StartedScenario {
+        private final TestCaseStarted testCaseStarted;
+        private final Pickle pickle;
+        private final int line;
+        private final Instant timestamp;
+
+        private StartedScenario(TestCaseStarted testCaseStarted, Pickle pickle, int line, Instant timestamp) {
+            this.testCaseStarted = testCaseStarted;
+            this.pickle = pickle;
+            this.line = line;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Snippet;
+import io.cucumber.messages.types.Suggestion;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Caches the snippets formatted by the {@link SuggestionFormatter}.
+ * <p>
+ * Undefined steps with the same text share the same snippets. These are
+ * formatted once per run. When {@code printOnce} is set, only the first
+ * occurrence gets the snippets. Later occurrences refer back to it.
+ * <p>
+ * At most {@link #CAPACITY} snippets are cached, the least recently used are
+ * evicted first. The next occurrence of evicted snippets gets them in full
+ * again.
+ * <p>
+ * Thread safe, may be used while rendering test cases in parallel.
+ */
+final class SnippetCache {
+
+    static final int CAPACITY = 1024;
+
+    private final boolean printOnce;
+    private final Map<Key, FormattedSnippets> snippetsByKey;
+
+    SnippetCache(boolean printOnce) {
+        this(printOnce, CAPACITY);
+    }
+
+    SnippetCache(boolean printOnce, int capacity) {
+        this.printOnce = printOnce;
+        this.snippetsByKey = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FormattedSnippets> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Formats the suggestions.
+     *
+     * @param suggestions the suggestions to format
+     * @param reference   describes where the suggestions were made, used
+     *                    by later occurrences to refer back to the first
+     */
+    String format(Collection<Suggestion> suggestions, Supplier<String> reference) {
+        if (suggestions.isEmpty()) {
+            return "";
+        }
+        Key key = new Key(suggestions);
+        FormattedSnippets existing = find(key);
+        if (existing == null) {
+            FormattedSnippets created = new FormattedSnippets(SuggestionFormatter.format(suggestions), reference.get());
+            existing = putIfAbsent(key, created);
+            if (existing == null) {
+                return created.snippets;
+            }
+        }
+        return printOnce ? existing.formatReference() : existing.snippets;
+    }
+
+    private synchronized @Nullable FormattedSnippets find(Key key) {
+        return snippetsByKey.get(key);
+    }
+
+    private synchronized @Nullable FormattedSnippets putIfAbsent(Key key, FormattedSnippets snippets) {
+        return snippetsByKey.putIfAbsent(key, snippets);
+    }
+
+    synchronized int size() {
+        return snippetsByKey.size();
+    }
+
+    private static final class FormattedSnippets {
+        private final String snippets;
+        private final String reference;
+
+        private FormattedSnippets(String snippets, String reference) {
+            this.snippets = snippets;
+            this.reference = reference;
+        }
+
+        String formatReference() {
+            return "You can implement this step using the snippet(s) printed for " + reference + "\n";
+        }
+    }
+
+    /**
+     * The content of the suggestions, without the ids that make every
+     * suggestion unique.
+     */
+    private static final class Key {
+        private final int suggestions;
+        private final List<String> codes = new ArrayList<>();
+
+        private Key(Collection<Suggestion> suggestions) {
+            this.suggestions = suggestions.size();
+            for (Suggestion suggestion : suggestions) {
+                for (Snippet snippet : suggestion.getSnippets()) {
+                    codes.add(snippet.getCode());
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == null || getClass() != o.getClass())
+                return false;
+            Key that = (Key) o;
+            return suggestions == that.suggestions && codes.equals(that.codes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(suggestions, codes);
+        }
+    }
+}
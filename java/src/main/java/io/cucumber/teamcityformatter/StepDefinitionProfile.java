@@ -0,0 +1,201 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.SourceReference;
+import io.cucumber.messages.types.StepDefinition;
+import io.cucumber.messages.types.TestStep;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.query.Query;
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.ProfileOutput;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import static io.cucumber.messages.Convertor.toDuration;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_BUILD_STATISTIC_VALUE;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_MESSAGE;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_PUBLISH_ARTIFACTS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Profiles the time spent in each step definition and hook.
+ * <p>
+ * Durations are accumulated in arrays indexed by the order in which the step
+ * definitions and hooks were first invoked. After the test run the step
+ * definitions and hooks with the largest total duration are printed.
+ */
+final class StepDefinitionProfile implements TestRunReport {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Supplier<Query> query;
+    private final int top;
+    private final ProfileOutput output;
+    private final @Nullable Path artifact;
+    private final Map<String, Integer> indexById = new HashMap<>();
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private String[] labels = new String[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] totalNanos = new long[INITIAL_CAPACITY];
+    private long[] maxNanos = new long[INITIAL_CAPACITY];
+    private int size;
+
+    StepDefinitionProfile(Supplier<Query> query, int top, ProfileOutput output, @Nullable Path artifact) {
+        this.query = query;
+        this.top = top;
+        this.output = output;
+        this.artifact = artifact;
+    }
+
+    @Override
+    public void register(EnvelopeRouter.Builder router) {
+        router.on(TestStepFinished.class, this::record);
+    }
+
+    private void record(TestStepFinished event) {
+        Optional<TestStep> testStep = query.get().findTestStepBy(event);
+        if (testStep.isEmpty()) {
+            return;
+        }
+        int index = findIndexOf(testStep.get());
+        if (index < 0) {
+            return;
+        }
+        long nanos = toDuration(event.getTestStepResult().getDuration()).toNanos();
+        counts[index]++;
+        totalNanos[index] += nanos;
+        maxNanos[index] = Math.max(maxNanos[index], nanos);
+    }
+
+    private int findIndexOf(TestStep testStep) {
+        Optional<String> hookId = testStep.getHookId();
+        if (hookId.isPresent()) {
+            Integer index = indexById.get(hookId.get());
+            if (index != null) {
+                return index;
+            }
+            return query.get().findHookBy(testStep)
+                    .map(hook -> add(hook.getId(), TeamCityWriter.formatHookStepName(hook), hook.getSourceReference()))
+                    .orElse(-1);
+        }
+        Optional<StepDefinition> stepDefinition = query.get().findUnambiguousStepDefinitionBy(testStep);
+        if (stepDefinition.isEmpty()) {
+            // Undefined or ambiguous steps have no glue code to profile
+            return -1;
+        }
+        StepDefinition definition = stepDefinition.get();
+        Integer index = indexById.get(definition.getId());
+        if (index != null) {
+            return index;
+        }
+        return add(definition.getId(), definition.getPattern().getSource(), definition.getSourceReference());
+    }
+
+    private int add(String id, String name, SourceReference sourceReference) {
+        if (size == counts.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            totalNanos = Arrays.copyOf(totalNanos, capacity);
+            maxNanos = Arrays.copyOf(maxNanos, capacity);
+        }
+        Optional<String> location = formatLocation(sourceReference);
+        int index = size++;
+        keys[index] = location.orElse(name);
+        labels[index] = location.map(value -> name + " (" + value + ")").orElse(name);
+        indexById.put(id, index);
+        return index;
+    }
+
+    private static Optional<String> formatLocation(SourceReference sourceReference) {
+        Optional<String> location = SourceReferenceFormatter.formatLocation(sourceReference);
+        if (location.isPresent()) {
+            return location;
+        }
+        return sourceReference.getUri()
+                .map(uri -> sourceReference.getLocation()
+                        .map(line -> uri + ":" + line.getLine())
+                        .orElse(uri));
+    }
+
+    @Override
+    public void print(TeamCityCommandWriter out) {
+        int[] slowest = findSlowest();
+        if (output == ProfileOutput.BUILD_STATISTIC_VALUES) {
+            printBuildStatisticValues(out, slowest);
+            return;
+        }
+        String profile = formatProfile(slowest);
+        if (artifact != null && writeArtifact(artifact, profile)) {
+            out.print(TEMPLATE_PUBLISH_ARTIFACTS, artifact.toAbsolutePath());
+            return;
+        }
+        out.print(TEMPLATE_MESSAGE, profile);
+    }
+
+    private int[] findSlowest() {
+        Integer[] indices = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        // Stable, ties remain in order of first invocation
+        Arrays.sort(indices, (a, b) -> Long.compare(totalNanos[b], totalNanos[a]));
+        int[] slowest = new int[Math.min(top, size)];
+        for (int i = 0; i < slowest.length; i++) {
+            slowest[i] = indices[i];
+        }
+        return slowest;
+    }
+
+    private void printBuildStatisticValues(TeamCityCommandWriter out, int[] slowest) {
+        for (int index : slowest) {
+            String prefix = "cucumber.glue." + keys[index];
+            out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".count", counts[index]);
+            out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.total", toMillis(totalNanos[index]));
+            out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.max", toMillis(maxNanos[index]));
+            out.print(TEMPLATE_BUILD_STATISTIC_VALUE, prefix + ".duration.mean", toMillis(totalNanos[index] / counts[index]));
+        }
+    }
+
+    private String formatProfile(int[] slowest) {
+        StringBuilder profile = new StringBuilder()
+                .append("Step definition profile, top ").append(slowest.length).append(" of ").append(size)
+                .append(" by total duration\n")
+                .append("%10s %12s %10s %10s  %s\n".formatted("count", "total (ms)", "max (ms)", "mean (ms)", "glue"));
+        for (int index : slowest) {
+            profile.append("%10d %12d %10d %10d  %s\n".formatted(
+                    counts[index],
+                    toMillis(totalNanos[index]),
+                    toMillis(maxNanos[index]),
+                    toMillis(totalNanos[index] / counts[index]),
+                    labels[index]));
+        }
+        return profile.toString();
+    }
+
+    private static boolean writeArtifact(Path artifact, String profile) {
+        try {
+            Path parent = artifact.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.writeString(artifact, profile, UTF_8);
+            return true;
+        } catch (IOException e) {
+            // Fall back to printing the profile.
+            return false;
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return NANOSECONDS.toMillis(nanos);
+    }
+}
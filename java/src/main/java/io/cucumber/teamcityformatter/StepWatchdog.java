@@ -0,0 +1,130 @@
+package io.cucumber.teamcityformatter;
+
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.LongSupplier;
+
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_WARNING;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Warns about steps that have been running for longer than a threshold.
+ * <p>
+ * Steps are watched per test case, so concurrently executing test cases are
+ * watched independently. Each step is warned about at most once, and never
+ * after it has finished.
+ */
+final class StepWatchdog implements AutoCloseable {
+
+    private static final long MIN_PERIOD_NANOS = Duration.ofMillis(10).toNanos();
+    private static final long MAX_PERIOD_NANOS = Duration.ofSeconds(1).toNanos();
+
+    private final TeamCityCommandWriter out;
+    private final long thresholdNanos;
+    private final LongSupplier nanoTime;
+    private final IdRegistry testCaseStartedIds = new IdRegistry();
+    private final IdRegistry.Index<InFlightTestCase> inFlightByTestCaseStartedId = new IdRegistry.Index<>();
+    private @Nullable ScheduledExecutorService scheduler;
+    private boolean closed;
+
+    StepWatchdog(TeamCityCommandWriter out, Duration threshold, LongSupplier nanoTime) {
+        this.out = out;
+        this.thresholdNanos = threshold.toNanos();
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Starts checking the running steps periodically, on a daemon thread.
+     */
+    StepWatchdog start() {
+        long period = Math.min(Math.max(thresholdNanos / 4, MIN_PERIOD_NANOS), MAX_PERIOD_NANOS);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "teamcity-formatter-step-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::check, period, period, NANOSECONDS);
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    synchronized void testCaseStarted(String testCaseStartedId, String testCaseName) {
+        inFlightByTestCaseStartedId.put(testCaseStartedIds.register(testCaseStartedId),
+                new InFlightTestCase(testCaseName));
+    }
+
+    synchronized void testStepStarted(String testCaseStartedId, String testStepName) {
+        InFlightTestCase testCase = inFlightByTestCaseStartedId.get(testCaseStartedIds.find(testCaseStartedId));
+        if (testCase != null) {
+            testCase.runningStep = new RunningStep(testStepName, nanoTime.getAsLong());
+        }
+    }
+
+    synchronized void testStepFinished(String testCaseStartedId) {
+        InFlightTestCase testCase = inFlightByTestCaseStartedId.get(testCaseStartedIds.find(testCaseStartedId));
+        if (testCase != null) {
+            testCase.runningStep = null;
+        }
+    }
+
+    synchronized void testCaseFinished(String testCaseStartedId) {
+        inFlightByTestCaseStartedId.remove(testCaseStartedIds.release(testCaseStartedId));
+    }
+
+    /**
+     * Checks the running steps at the current time. Invoked periodically
+     * once {@linkplain #start() started}.
+     */
+    void check() {
+        check(nanoTime.getAsLong());
+    }
+
+    synchronized void check(long now) {
+        if (closed) {
+            return;
+        }
+        inFlightByTestCaseStartedId.forEach(testCase -> {
+            RunningStep step = testCase.runningStep;
+            if (step == null || step.warned) {
+                return;
+            }
+            long elapsed = now - step.startedNanos;
+            if (elapsed >= thresholdNanos) {
+                step.warned = true;
+                out.print(TEMPLATE_WARNING, "Step '%s' of '%s' has been running for %d ms"
+                        .formatted(step.name, testCase.name, NANOSECONDS.toMillis(elapsed)));
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static final class InFlightTestCase {
+        private final String name;
+        private @Nullable RunningStep runningStep;
+
+        private InFlightTestCase(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class RunningStep {
+        private final String name;
+        private final long startedNanos;
+        private boolean warned;
+
+        private RunningStep(String name, long startedNanos) {
+            this.name = name;
+            this.startedNanos = startedNanos;
+        }
+    }
+}
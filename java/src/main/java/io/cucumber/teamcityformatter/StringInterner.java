@@ -0,0 +1,32 @@
+package io.cucumber.teamcityformatter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Deduplicates strings retained by the formatter until the end of the test
+ * run.
+ * <p>
+ * Unlike {@link String#intern()} the strings are only held on to for the
+ * lifetime of a single writer, and released when it is closed.
+ * <p>
+ * Not thread safe, must only be used from the thread that receives the
+ * messages.
+ */
+final class StringInterner {
+
+    private final Map<String, String> strings = new HashMap<>();
+
+    String intern(String string) {
+        String existing = strings.putIfAbsent(string, string);
+        return existing == null ? string : existing;
+    }
+
+    int size() {
+        return strings.size();
+    }
+
+    void clear() {
+        strings.clear();
+    }
+}
@@ -1,31 +1,62 @@
 package io.cucumber.teamcityformatter;
 
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
+import org.jspecify.annotations.Nullable;
 
-import static java.util.Objects.requireNonNull;
+import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes TeamCity service messages to the sinks.
+ * <p>
+ * Messages may be printed from multiple threads, each message is written as
+ * a whole.
+ */
 final class TeamCityCommandWriter implements AutoCloseable {
-    private final PrintWriter out;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    static final String TEAMCITY_PREFIX = "##teamcity";
+
+    static final String TEMPLATE_MESSAGE = TEAMCITY_PREFIX + "[message text='%s' status='NORMAL']";
+    static final String TEMPLATE_WARNING = TEAMCITY_PREFIX + "[message text='%s' status='WARNING']";
+    static final String TEMPLATE_BUILD_STATISTIC_VALUE = TEAMCITY_PREFIX + "[buildStatisticValue key='%s' value='%s']";
+    static final String TEMPLATE_PUBLISH_ARTIFACTS = TEAMCITY_PREFIX + "[publishArtifacts '%s']";
 
-    TeamCityCommandWriter(OutputStream out) {
-        this.out = createPrintWriter(out);
+    private final List<MessageSink> sinks;
+    private final @Nullable String flowId;
+
+    TeamCityCommandWriter(List<MessageSink> sinks) {
+        this(sinks, null);
     }
 
-    private static PrintWriter createPrintWriter(OutputStream out) {
-        return new PrintWriter(
-                new OutputStreamWriter(
-                        requireNonNull(out),
-                        StandardCharsets.UTF_8
-                ),
-                true
-        );
+    /**
+     * @param flowId when not null, added to every message to distinguish
+     *               concurrent flows of messages in the same output
+     */
+    TeamCityCommandWriter(List<MessageSink> sinks, @Nullable String flowId) {
+        this.sinks = List.copyOf(sinks);
+        this.flowId = flowId;
     }
 
     void print(String command, Object... args) {
-        out.println(formatCommand(command, args));
+        print(MessagePriority.NORMAL, command, args);
+    }
+
+    synchronized void print(MessagePriority priority, String command, Object... args) {
+        byte[] message = (formatCommand(command, args) + LINE_SEPARATOR).getBytes(UTF_8);
+        for (MessageSink sink : sinks) {
+            sink.write(message, priority);
+        }
+    }
+
+    synchronized void printAll(MessageBuffer buffer) {
+        List<byte[]> messages = buffer.getMessages();
+        List<MessagePriority> priorities = buffer.getPriorities();
+        for (int i = 0; i < messages.size(); i++) {
+            for (MessageSink sink : sinks) {
+                sink.write(messages.get(i), priorities.get(i));
+            }
+        }
     }
 
     private String formatCommand(String command, Object... parameters) {
@@ -34,7 +65,12 @@ final class TeamCityCommandWriter implements AutoCloseable {
             escapedParameters[i] = escape(parameters[i].toString());
         }
 
-        return command.formatted((Object[]) escapedParameters);
+        String formatted = command.formatted((Object[]) escapedParameters);
+        if (flowId == null) {
+            return formatted;
+        }
+        // Every command ends with ']', escaped values do not
+        return formatted.substring(0, formatted.length() - 1) + " flowId = '" + escape(flowId) + "']";
     }
 
     private String escape(String source) {
@@ -52,7 +88,9 @@ final class TeamCityCommandWriter implements AutoCloseable {
     }
 
     @Override
-    public void close() {
-        out.close();
+    public synchronized void close() {
+        for (MessageSink sink : sinks) {
+            sink.close();
+        }
     }
-}
\ No newline at end of file
+}
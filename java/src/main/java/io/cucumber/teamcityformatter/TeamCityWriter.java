@@ -2,12 +2,12 @@ package io.cucumber.teamcityformatter;
 
 import io.cucumber.messages.Convertor;
 import io.cucumber.messages.types.Attachment;
-import io.cucumber.messages.types.Envelope;
 import io.cucumber.messages.types.Exception;
 import io.cucumber.messages.types.Hook;
 import io.cucumber.messages.types.Location;
 import io.cucumber.messages.types.Pickle;
 import io.cucumber.messages.types.PickleStep;
+import io.cucumber.messages.types.TestCase;
 import io.cucumber.messages.types.TestCaseFinished;
 import io.cucumber.messages.types.TestCaseStarted;
 import io.cucumber.messages.types.TestRunFinished;
@@ -20,23 +20,40 @@ import io.cucumber.messages.types.TestStepStarted;
 import io.cucumber.messages.types.Timestamp;
 import io.cucumber.query.LineageReducer;
 import io.cucumber.query.Query;
+import org.jspecify.annotations.Nullable;
 
+import java.time.Duration;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.function.BiFunction;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import static io.cucumber.messages.Convertor.toDuration;
 import static io.cucumber.query.LineageReducer.descending;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_SCENARIOS_AS_TESTS;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_SNIPPETS_ONCE;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
+import static io.cucumber.teamcityformatter.MessagePriority.LOW;
+import static io.cucumber.teamcityformatter.MessagePriority.LOW_FINISHED;
+import static io.cucumber.teamcityformatter.MessagePriority.LOW_STARTED;
+import static io.cucumber.teamcityformatter.MessagePriority.NORMAL;
 import static io.cucumber.teamcityformatter.SourceReferenceFormatter.formatMethodName;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEAMCITY_PREFIX;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_MESSAGE;
+import static io.cucumber.teamcityformatter.TeamCityCommandWriter.TEMPLATE_WARNING;
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
 
 /**
  * Writes Cucumber messages as TeamCity messages.
@@ -52,8 +69,6 @@ final class TeamCityWriter implements AutoCloseable {
 
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'hh:mm:ss.SSSZ");
 
-    private static final String TEAMCITY_PREFIX = "##teamcity";
-
     private static final String TEMPLATE_ENTER_THE_MATRIX = TEAMCITY_PREFIX + "[enteredTheMatrix timestamp = '%s']";
     private static final String TEMPLATE_TEST_RUN_STARTED = TEAMCITY_PREFIX
             + "[testSuiteStarted timestamp = '%s' name = 'Cucumber']";
@@ -93,132 +108,441 @@ final class TeamCityWriter implements AutoCloseable {
     private static final String TEMPLATE_PROGRESS_TEST_FINISHED = TEAMCITY_PREFIX
             + "[customProgressStatus type = 'testFinished' timestamp = '%s']";
 
-    private static final String TEMPLATE_ATTACH_WRITE_EVENT = TEAMCITY_PREFIX + "[message text='%s' status='NORMAL']";
+    private static final int RENDERING_WINDOW = 256;
 
-    private final LineageReducer<List<LineageNode>> pathCollector = descending(PathCollector::new);
+    // Longer attachments are rarely repeated verbatim.
+    private static final int MAX_INTERNED_ATTACHMENT_LENGTH = 256;
 
     // Only used when executing concurrently.
-    private final Map<String, List<String>> attachmentMessagesByStepId = new HashMap<>();
+    private final IdRegistry testStepIds = new IdRegistry();
+    private final IdRegistry.Index<List<String>> attachmentMessagesByStepId = new IdRegistry.Index<>();
 
     private List<LineageNode> currentLineage = new ArrayList<>();
 
     private final TeamCityCommandWriter out;
-    private final Query query;
-
-    TeamCityWriter(TeamCityCommandWriter out, Query query) {
+    private final Supplier<Query> query;
+    private final CompactingRepository repository;
+    private final LineageReducer<List<LineageNode>> pathCollector;
+    private final RetriedTestCaseCollapser retriedTestCaseCollapser;
+    private final ProgressThrottle progressThrottle;
+    private final AttachmentLimiter attachmentLimiter;
+    private final @Nullable Executor renderingExecutor;
+    private final List<TestRunReport> reports;
+    private final @Nullable StepWatchdog stepWatchdog;
+    private final StringInterner interner;
+    private final @Nullable PassingHookCollapser passingHookCollapser;
+    private final boolean scenariosAsTests;
+    private final SnippetCache snippetCache;
+    private final boolean printTestRun;
+    // Only used when printing scenarios as tests.
+    private final IdRegistry startedScenarioIds = new IdRegistry();
+    private final IdRegistry.Index<StartedScenario> startedScenariosByTestCaseStartedId = new IdRegistry.Index<>();
+    private final EnvelopeRouter router;
+    // Only used when holding test cases in a reorder window.
+    private final IdRegistry runningTestCaseIds = new IdRegistry();
+    private final IdRegistry.Index<TestCaseStarted> runningTestCasesById = new IdRegistry.Index<>();
+    private final IdRegistry unscheduledPickleIds = new IdRegistry();
+    private final IdRegistry.Index<Pickle> unscheduledPicklesById = new IdRegistry.Index<>();
+
+    TeamCityWriter(
+            TeamCityCommandWriter out, CompactingRepository repository,
+            RetriedTestCaseCollapser retriedTestCaseCollapser, List<TestRunReport> reports,
+            @Nullable StepWatchdog stepWatchdog, StringInterner interner, MessagesToTeamCityWriter.Options options
+    ) {
         this.out = out;
-        this.query = query;
+        this.query = repository::getQuery;
+        this.repository = repository;
+        this.pathCollector = descending(() -> new PathCollector(options.getFeatures()));
+        this.retriedTestCaseCollapser = retriedTestCaseCollapser;
+        this.progressThrottle = options.createProgressThrottle();
+        this.attachmentLimiter = options.createAttachmentLimiter();
+        this.renderingExecutor = options.getRenderingExecutor();
+        this.reports = reports;
+        this.stepWatchdog = stepWatchdog;
+        this.interner = interner;
+        this.passingHookCollapser = options.createPassingHookCollapser();
+        this.scenariosAsTests = options.hasFeature(PRINT_SCENARIOS_AS_TESTS);
+        this.printTestRun = options.isPrintTestRun();
+        @Nullable ReorderWindow<RenderedTestCase> reorderWindow = options.createReorderWindow();
+        // The first occurrence is not known when rendering in parallel or
+        // out of order.
+        this.snippetCache = new SnippetCache(options.hasFeature(PRINT_SNIPPETS_ONCE)
+                && renderingExecutor == null && reorderWindow == null);
+        if (options.hasFeature(PRINT_TEST_CASES_AFTER_TEST_RUN)) {
+            this.router = createAfterTestRunRouter();
+        } else if (reorderWindow != null) {
+            this.router = createReorderWindowRouter(reorderWindow);
+        } else {
+            this.router = createRealTimeRouter();
+        }
     }
 
-    void printTestCasesRealTime(Envelope event) {
-        event.getTestRunStarted().ifPresent(this::printTestRunStarted);
-        event.getTestCaseStarted().ifPresent(this::printTestCaseStarted);
-        event.getTestStepStarted().ifPresent(this::printTestStepStarted);
-        event.getTestStepFinished().ifPresent(this::printTestStepFinished);
-        event.getTestCaseFinished().ifPresent(this::printTestCaseFinished);
-        event.getTestRunFinished().ifPresent(this::printTestRunFinished);
-        event.getAttachment().ifPresent(this::handleAttachment);
+    private EnvelopeRouter createRealTimeRouter() {
+        EnvelopeRouter.Builder router = EnvelopeRouter.builder();
+        reports.forEach(report -> report.register(router));
+        return router
+                .on(TestRunStarted.class, this::printTestRunStarted)
+                .on(TestCaseStarted.class, this::printTestCaseStarted)
+                .on(TestStepStarted.class, this::printTestStepStarted)
+                .on(TestStepFinished.class, this::printTestStepFinished)
+                .on(TestCaseFinished.class, this::printTestCaseFinished)
+                .on(TestCaseFinished.class, attachmentLimiter::release)
+                .on(TestRunFinished.class, this::printTestRunFinished)
+                .on(Attachment.class, this::handleAttachment)
+                .build();
+    }
+
+    private EnvelopeRouter createAfterTestRunRouter() {
+        EnvelopeRouter.Builder router = EnvelopeRouter.builder();
+        reports.forEach(report -> report.register(router));
+        return router
+                .on(TestRunStarted.class, this::printTestRunStarted)
+                .on(TestRunFinished.class, this::printCompleteTestRun)
+                .on(Attachment.class, attachment -> storeStepAttachments(attachment, true))
+                .on(TestCaseFinished.class, attachmentLimiter::release)
+                .build();
+    }
+
+    private EnvelopeRouter createReorderWindowRouter(ReorderWindow<RenderedTestCase> reorderWindow) {
+        EnvelopeRouter.Builder router = EnvelopeRouter.builder();
+        reports.forEach(report -> report.register(router));
+        return router
+                .on(TestRunStarted.class, this::printTestRunStarted)
+                .on(Pickle.class, pickle -> unscheduledPicklesById.put(
+                        unscheduledPickleIds.register(pickle.getId()), pickle))
+                .on(TestCase.class, testCase -> scheduleTestCase(reorderWindow, testCase))
+                .on(TestCaseStarted.class, testCaseStarted -> startTestCase(reorderWindow, testCaseStarted))
+                .on(Attachment.class, attachment -> storeStepAttachments(attachment, false))
+                .on(TestCaseFinished.class, testCaseFinished -> holdTestCase(reorderWindow, testCaseFinished))
+                .on(TestCaseFinished.class, attachmentLimiter::release)
+                .on(TestRunFinished.class, testRunFinished -> {
+                    reorderWindow.finishedAll().forEach(this::printRenderedTestCase);
+                    printTestRunFinished(testRunFinished);
+                })
+                .build();
     }
 
-    void printTestCasesAfterTestRun(Envelope event) {
-        event.getTestRunStarted().ifPresent(this::printTestRunStarted);
-        event.getTestRunFinished().ifPresent(this::printCompleteTestRun);
-        event.getAttachment().ifPresent(this::storeStepAttachments);
+    /**
+     * Registers the step watchdog, if any. Its handlers are invoked as soon
+     * as a message is received, before it is held back for printing.
+     */
+    void watchTestSteps(EnvelopeRouter.Builder router) {
+        StepWatchdog watchdog = stepWatchdog;
+        if (watchdog == null) {
+            return;
+        }
+        router.on(TestCaseStarted.class, testCaseStarted -> watchdog.testCaseStarted(
+                testCaseStarted.getId(),
+                query.get().findPickleBy(testCaseStarted).map(Pickle::getName).orElse("Unknown test case")));
+        router.on(TestStepStarted.class, testStepStarted -> watchdog.testStepStarted(
+                testStepStarted.getTestCaseStartedId(),
+                query.get().findTestStepBy(testStepStarted).map(this::formatTestStepName).orElse("Unknown step")));
+        router.on(TestStepFinished.class, testStepFinished -> watchdog.testStepFinished(
+                testStepFinished.getTestCaseStartedId()));
+        router.on(TestCaseFinished.class, testCaseFinished -> watchdog.testCaseFinished(
+                testCaseFinished.getTestCaseStartedId()));
+    }
+
+    /**
+     * Prints a message in real time, after the test run or in a reorder
+     * window, as configured.
+     */
+    void print(ClassifiedEnvelope event) {
+        router.route(event);
+    }
+
+    /**
+     * Marks a test case as pending as soon as it is known, rather than when
+     * it starts. So a test case that finished can not be printed before a
+     * test case that comes before it, but has yet to start.
+     */
+    private void scheduleTestCase(ReorderWindow<RenderedTestCase> reorderWindow, TestCase testCase) {
+        Pickle pickle = unscheduledPicklesById.remove(unscheduledPickleIds.release(testCase.getPickleId()));
+        if (pickle != null) {
+            reorderWindow.started(orderByPickle(pickle, testCase.getId()));
+        }
+    }
+
+    private void startTestCase(ReorderWindow<RenderedTestCase> reorderWindow, TestCaseStarted event) {
+        runningTestCasesById.put(runningTestCaseIds.register(event.getId()), event);
+        repository.hold(event.getId());
+        reorderWindow.started(orderByPickleOf(event, event.getTestCaseId()));
+    }
+
+    /**
+     * Renders the steps of a finished test case, and holds it until it can
+     * be printed in canonical order.
+     */
+    private void holdTestCase(ReorderWindow<RenderedTestCase> reorderWindow, TestCaseFinished event) {
+        TestCaseStarted testCaseStarted = runningTestCasesById.remove(
+                runningTestCaseIds.release(event.getTestCaseStartedId()));
+        if (testCaseStarted == null) {
+            return;
+        }
+        MessageBuffer steps = renderTestCaseSteps(testCaseStarted);
+        // Later attempts reuse the test step ids.
+        query.get().findTestStepsStartedBy(testCaseStarted)
+                .forEach(testStepStarted -> attachmentMessagesByStepId.remove(
+                        testStepIds.release(testStepStarted.getTestStepId())));
+        RenderedTestCase rendered = new RenderedTestCase(testCaseStarted, completedFuture(steps));
+        reorderWindow.finished(testCaseStarted.getTestCaseId(), orderByPickleOf(testCaseStarted, rendered),
+                steps.getBytes(), !event.getWillBeRetried())
+                .forEach(this::printRenderedTestCase);
     }
 
     private void printCompleteTestRun(TestRunFinished event) {
-        findAllTestCaseStartedInCanonicalOrder()
-                .forEach(this::printCompleteTestCase);
+        if (renderingExecutor == null) {
+            findAllTestCaseStartedInCanonicalOrder()
+                    .forEach(this::printCompleteTestCase);
+        } else {
+            printCompleteTestCasesInParallel(renderingExecutor);
+        }
         printTestRunFinished(event);
     }
 
+    /**
+     * Renders the steps of test cases in parallel.
+     * <p>
+     * The lineage of each test case depends on the previous test case, so
+     * the suite messages are still printed sequentially. At most
+     * {@link #RENDERING_WINDOW} rendered test cases are held in memory.
+     */
+    private void printCompleteTestCasesInParallel(Executor executor) {
+        Iterator<TestCaseStarted> testCases = findAllTestCaseStartedInCanonicalOrder().iterator();
+        Deque<RenderedTestCase> rendered = new ArrayDeque<>();
+        while (testCases.hasNext() || !rendered.isEmpty()) {
+            while (testCases.hasNext() && rendered.size() < RENDERING_WINDOW) {
+                TestCaseStarted testCaseStarted = testCases.next();
+                CompletableFuture<MessageBuffer> steps = supplyAsync(() -> renderTestCaseSteps(testCaseStarted), executor);
+                rendered.add(new RenderedTestCase(testCaseStarted, steps));
+            }
+            printRenderedTestCase(rendered.remove());
+        }
+    }
+
+    private void printRenderedTestCase(RenderedTestCase rendered) {
+        printTestCaseStarted(rendered.testCaseStarted);
+        out.printAll(rendered.steps.join());
+        query.get().findTestCaseFinishedBy(rendered.testCaseStarted)
+                .ifPresent(this::printTestCaseFinished);
+        repository.release(rendered.testCaseStarted.getId());
+    }
+
+    private MessageBuffer renderTestCaseSteps(TestCaseStarted testCaseStarted) {
+        MessageBuffer buffer = new MessageBuffer();
+        printTestCaseSteps(new TeamCityCommandWriter(List.of(buffer)), testCaseStarted);
+        return buffer;
+    }
+
+    static final class RenderedTestCase {
+        private final TestCaseStarted testCaseStarted;
+        private final CompletableFuture<MessageBuffer> steps;
+
+        private RenderedTestCase(TestCaseStarted testCaseStarted, CompletableFuture<MessageBuffer> steps) {
+            this.testCaseStarted = testCaseStarted;
+            this.steps = steps;
+        }
+    }
+
     private Stream<TestCaseStarted> findAllTestCaseStartedInCanonicalOrder() {
-        return query.findAllTestCaseStarted().stream()
-                .map(testCaseStarted -> {
-                    Optional<Pickle> pickle = query.findPickleBy(testCaseStarted);
-                    String uri = pickle.map(Pickle::getUri).orElse(null);
-                    Integer line = pickle.flatMap(query::findLocationOf).map(Location::getLine).orElse(null);
-                    return new OrderableEvent<>(testCaseStarted, uri, line);
-                })
+        return query.get().findAllTestCaseStarted().stream()
+                .map(testCaseStarted -> orderByPickleOf(testCaseStarted, testCaseStarted))
                 .sorted()
                 .map(OrderableEvent::getEvent);
     }
 
+    private <T> OrderableEvent<T> orderByPickleOf(TestCaseStarted testCaseStarted, T event) {
+        Optional<Pickle> pickle = query.get().findPickleBy(testCaseStarted);
+        String uri = pickle.map(Pickle::getUri).orElse(null);
+        Integer line = pickle.flatMap(query.get()::findLocationOf).map(Location::getLine).orElse(null);
+        return new OrderableEvent<>(event, uri, line);
+    }
+
+    private <T> OrderableEvent<T> orderByPickle(Pickle pickle, T event) {
+        Integer line = query.get().findLocationOf(pickle).map(Location::getLine).orElse(null);
+        return new OrderableEvent<>(event, pickle.getUri(), line);
+    }
+
     @Override
     public void close() {
+        if (stepWatchdog != null) {
+            stepWatchdog.close();
+        }
         out.close();
+        interner.clear();
     }
 
     private void printCompleteTestCase(TestCaseStarted testCaseStarted) {
         printTestCaseStarted(testCaseStarted);
+        printTestCaseSteps(out, testCaseStarted);
+        query.get().findTestCaseFinishedBy(testCaseStarted)
+                .ifPresent(this::printTestCaseFinished);
+    }
 
-        query.findTestStepsStartedBy(testCaseStarted)
+    /**
+     * Prints the steps of a completed test case.
+     * <p>
+     * May be invoked concurrently, must only read state.
+     */
+    private void printTestCaseSteps(TeamCityCommandWriter out, TestCaseStarted testCaseStarted) {
+        retriedTestCaseCollapser.findRetriedAttemptsBy(testCaseStarted)
+                .ifPresent(retriedAttempts -> printRetriedAttempts(out, retriedAttempts));
+
+        if (scenariosAsTests) {
+            // The steps are summarized when the scenario finishes.
+            query.get().findTestStepsStartedBy(testCaseStarted)
+                    .forEach(testStepStarted -> findAttachmentBy(testStepStarted)
+                            .forEach(message -> handleAttachment(out, message)));
+            return;
+        }
+
+        query.get().findTestStepsStartedBy(testCaseStarted)
                 .forEach(testStepStarted -> {
-                    printTestStepStarted(testStepStarted);
-                    findAttachmentBy(testStepStarted).forEach(this::handleAttachment);
-                    findTestStepFinishedBy(testCaseStarted, testStepStarted).ifPresent(this::printTestStepFinished);
+                    List<String> attachments = findAttachmentBy(testStepStarted);
+                    Optional<TestStepFinished> testStepFinished = findTestStepFinishedBy(testCaseStarted, testStepStarted);
+                    if (testStepFinished.filter(finished -> isCollapsibleHook(finished, !attachments.isEmpty())).isPresent()) {
+                        return;
+                    }
+                    printTestStepStarted(out, testStepStarted);
+                    attachments.forEach(message -> handleAttachment(out, message));
+                    testStepFinished.ifPresent(finished -> printTestStepFinished(out, finished));
                 });
+    }
 
-        query.findTestCaseFinishedBy(testCaseStarted)
-                .ifPresent(this::printTestCaseFinished);
+    private static void printRetriedAttempts(
+            TeamCityCommandWriter out, RetriedTestCaseCollapser.RetriedAttempts retriedAttempts
+    ) {
+        String message = "Retried %d time(s), last failure: %s".formatted(
+                retriedAttempts.getCount(), retriedAttempts.getLastFailure());
+        out.print(TEMPLATE_WARNING, message);
     }
 
     private List<String> findAttachmentBy(TestStepStarted testStepStarted) {
-        return attachmentMessagesByStepId.getOrDefault(testStepStarted.getTestStepId(), emptyList());
+        List<String> messages = attachmentMessagesByStepId.get(testStepIds.find(testStepStarted.getTestStepId()));
+        return messages == null ? emptyList() : messages;
     }
 
     private Optional<TestStepFinished> findTestStepFinishedBy(
             TestCaseStarted testCaseStarted, TestStepStarted testStepStarted
     ) {
-        return query.findTestStepsFinishedBy(testCaseStarted).stream()
+        return query.get().findTestStepsFinishedBy(testCaseStarted).stream()
                 .filter(testStepFinished -> testStepFinished.getTestStepId().equals(testStepStarted.getTestStepId()))
                 .findFirst();
     }
 
-    private void storeStepAttachments(Attachment event) {
+    /**
+     * @param untilTestRunFinished whether the attachment is held until the
+     *                             test run finished, rather than until its
+     *                             test case was printed
+     */
+    private void storeStepAttachments(Attachment event, boolean untilTestRunFinished) {
         Optional<String> testStepId = event.getTestStepId();
         if (testStepId.isPresent()) {
             // Store a more minimal version of the attachment.
-            // Avoid holding on to large attachments needlessly 
-            attachmentMessagesByStepId.compute(testStepId.get(), updateList(extractAttachmentMessage(event)));
+            // Avoid holding on to large attachments needlessly, and to many
+            // copies of the same message.
+            String message = extractAttachmentMessage(event);
+            // The interner holds on to the message until the end of the run.
+            if (untilTestRunFinished && message.length() <= MAX_INTERNED_ATTACHMENT_LENGTH) {
+                message = interner.intern(message);
+            }
+            int id = testStepIds.register(testStepId.get());
+            List<String> messages = attachmentMessagesByStepId.get(id);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                attachmentMessagesByStepId.put(id, messages);
+            }
+            messages.add(message);
         } else {
             handleAttachment(event);
         }
     }
 
-    private <K, E> BiFunction<K, List<E>, List<E>> updateList(E element) {
-        return (key, existing) -> {
-            if (existing != null) {
-                existing.add(element);
-                return existing;
-            }
-            List<E> list = new ArrayList<>();
-            list.add(element);
-            return list;
-        };
+    private void printTestRunStarted(TestRunStarted event) {
+        if (printTestRun) {
+            printTestRunStarted(out, event.getTimestamp());
+        }
     }
 
-    private void printTestRunStarted(TestRunStarted event) {
-        String timestamp = formatTimeStamp(event.getTimestamp());
-        out.print(TEMPLATE_ENTER_THE_MATRIX, timestamp);
-        out.print(TEMPLATE_TEST_RUN_STARTED, timestamp);
-        out.print(TEMPLATE_PROGRESS_COUNTING_STARTED, timestamp);
+    /**
+     * Prints the messages that open a test run. The shards of a merged test
+     * run are printed inside a single test run, opened by the merger.
+     */
+    static void printTestRunStarted(TeamCityCommandWriter out, Timestamp timestamp) {
+        String formatted = formatTimeStamp(timestamp);
+        out.print(TEMPLATE_ENTER_THE_MATRIX, formatted);
+        out.print(TEMPLATE_TEST_RUN_STARTED, formatted);
+        out.print(TEMPLATE_PROGRESS_COUNTING_STARTED, formatted);
     }
 
     private void printTestCaseStarted(TestCaseStarted event) {
-        query.findPickleBy(event)
+        query.get().findPickleBy(event)
                 .flatMap(this::createLineageOf)
                 .ifPresent(lineage -> {
                     String timestamp = formatTimeStamp(event.getTimestamp());
-                    poppedNodes(lineage).forEach(node -> finishNode(timestamp, node));
-                    pushedNodes(lineage).forEach(node -> startNode(timestamp, node));
-                    this.currentLineage = lineage;
-                    out.print(TEMPLATE_PROGRESS_TEST_STARTED, timestamp);
+                    List<LineageNode> suites = scenariosAsTests ? lineage.subList(0, lineage.size() - 1) : lineage;
+                    poppedNodes(suites).forEach(node -> finishNode(timestamp, node));
+                    pushedNodes(suites).forEach(node -> startNode(timestamp, node));
+                    this.currentLineage = scenariosAsTests ? new ArrayList<>(suites) : lineage;
+                    if (progressThrottle.isTestStartedDue(event.getTimestamp())) {
+                        out.print(LOW, TEMPLATE_PROGRESS_TEST_STARTED, timestamp);
+                    }
+                    if (scenariosAsTests) {
+                        printScenarioStarted(timestamp, event, lineage.get(lineage.size() - 1));
+                    }
                 });
     }
 
+    private void printScenarioStarted(String timestamp, TestCaseStarted event, LineageNode scenario) {
+        String location = scenario.getUri() + ":" + scenario.getLocation().getLine();
+        out.print(TEMPLATE_TEST_STARTED, timestamp, location, scenario.getName());
+        startedScenariosByTestCaseStartedId.put(startedScenarioIds.register(event.getId()),
+                new StartedScenario(event, scenario));
+    }
+
+    /**
+     * Prints the outcome of the first step that did not pass, followed by
+     * the outcome of every step.
+     */
+    private void printScenarioFinished(String timestamp, TestCaseFinished event, StartedScenario started) {
+        Duration duration = Duration.between(
+                Convertor.toInstant(started.testCaseStarted.getTimestamp()),
+                Convertor.toInstant(event.getTimestamp()));
+        long millis = duration.toMillis();
+        String name = started.scenario.getName();
+        List<TestStepFinished> testStepsFinished = query.get().findTestStepsFinishedBy(started.testCaseStarted);
+        testStepsFinished.stream()
+                .filter(testStepFinished -> testStepFinished.getTestStepResult().getStatus() != TestStepResultStatus.PASSED)
+                .findFirst()
+                .ifPresent(testStepFinished -> printTestStepResult(out, timestamp, millis, name, testStepFinished,
+                        formatStepOutcomes(testStepsFinished)));
+        out.print(TEMPLATE_TEST_FINISHED, timestamp, millis, name);
+    }
+
+    private String formatStepOutcomes(List<TestStepFinished> testStepsFinished) {
+        StringBuilder outcomes = new StringBuilder("\n\nSteps:");
+        for (TestStepFinished testStepFinished : testStepsFinished) {
+            String name = query.get().findTestStepBy(testStepFinished).map(this::formatTestStepName).orElse("Unknown step");
+            outcomes.append("\n  ")
+                    .append(testStepFinished.getTestStepResult().getStatus().name())
+                    .append(" ")
+                    .append(name);
+        }
+        return outcomes.toString();
+    }
+
+    private static final class StartedScenario {
+        private final TestCaseStarted testCaseStarted;
+        private final LineageNode scenario;
+
+        private StartedScenario(TestCaseStarted testCaseStarted, LineageNode scenario) {
+            this.testCaseStarted = testCaseStarted;
+            this.scenario = scenario;
+        }
+    }
+
     private Optional<List<LineageNode>> createLineageOf(Pickle pickle) {
-        return query.findLineageBy(pickle)
+        return query.get().findLineageBy(pickle)
                 .map(lineage -> pathCollector.reduce(lineage, pickle));
     }
 
@@ -264,83 +588,152 @@ final class TeamCityWriter implements AutoCloseable {
     }
 
     private void printTestStepStarted(TestStepStarted event) {
+        if (scenariosAsTests) {
+            return;
+        }
+        if (passingHookCollapser != null && isHook(event)) {
+            // Not known yet if the hook will be printed.
+            passingHookCollapser.hold(event);
+            return;
+        }
+        printTestStepStarted(out, event);
+    }
+
+    private boolean isHook(TestStepStarted event) {
+        return query.get().findTestStepBy(event)
+                .filter(testStep -> testStep.getHookId().isPresent())
+                .isPresent();
+    }
+
+    private boolean isCollapsibleHook(TestStepFinished event, boolean hasAttachments) {
+        if (passingHookCollapser == null) {
+            return false;
+        }
+        return query.get().findTestStepBy(event)
+                .filter(testStep -> passingHookCollapser.isCollapsible(testStep, event.getTestStepResult(), hasAttachments))
+                .isPresent();
+    }
+
+    private void printPendingHook(String testCaseStartedId) {
+        if (passingHookCollapser == null) {
+            return;
+        }
+        passingHookCollapser.release(testCaseStartedId).ifPresent(pendingHook -> {
+            printTestStepStarted(out, pendingHook.getTestStepStarted());
+            pendingHook.getAttachments().forEach(this::handleAttachment);
+        });
+    }
+
+    private void printTestStepStarted(TeamCityCommandWriter out, TestStepStarted event) {
         String timestamp = formatTimeStamp(event.getTimestamp());
-        query.findTestStepBy(event).ifPresent(testStep -> {
+        query.get().findTestStepBy(event).ifPresent(testStep -> {
             String name = formatTestStepName(testStep);
             String location = findPickleTestStepLocation(event, testStep)
                     .orElseGet(() -> findHookStepLocation(testStep)
                             .orElse(""));
-            out.print(TEMPLATE_TEST_STARTED, timestamp, location, name);
+            MessagePriority priority = testStep.getHookId().isPresent() ? LOW_STARTED : NORMAL;
+            out.print(priority, TEMPLATE_TEST_STARTED, timestamp, location, name);
         });
     }
 
     private Optional<String> findPickleTestStepLocation(TestStepStarted testStepStarted, TestStep testStep) {
-        return query.findPickleStepBy(testStep)
-                .flatMap(query::findStepBy)
-                .flatMap(step -> query.findPickleBy(testStepStarted)
+        return query.get().findPickleStepBy(testStep)
+                .flatMap(query.get()::findStepBy)
+                .flatMap(step -> query.get().findPickleBy(testStepStarted)
                         .map(pickle -> pickle.getUri() + ":" + step.getLocation().getLine()));
     }
 
     private Optional<String> findHookStepLocation(TestStep testStep) {
-        return query.findHookBy(testStep)
+        return query.get().findHookBy(testStep)
                 .map(Hook::getSourceReference)
                 .flatMap(SourceReferenceFormatter::formatLocation);
     }
 
     private void printTestStepFinished(TestStepFinished event) {
+        if (scenariosAsTests) {
+            return;
+        }
+        if (passingHookCollapser != null) {
+            Optional<PassingHookCollapser.PendingHook> pendingHook = passingHookCollapser.release(event.getTestCaseStartedId());
+            if (pendingHook.isPresent()) {
+                boolean hasAttachments = !pendingHook.get().getAttachments().isEmpty();
+                if (isCollapsibleHook(event, hasAttachments)) {
+                    return;
+                }
+                printTestStepStarted(out, pendingHook.get().getTestStepStarted());
+                pendingHook.get().getAttachments().forEach(this::handleAttachment);
+            }
+        }
+        printTestStepFinished(out, event);
+    }
+
+    private void printTestStepFinished(TeamCityCommandWriter out, TestStepFinished event) {
         String timeStamp = formatTimeStamp(event.getTimestamp());
         TestStepResult testStepResult = event.getTestStepResult();
         long duration = toDuration(testStepResult.getDuration()).toMillis();
 
-        query.findTestStepBy(event).ifPresent(testStep -> {
+        query.get().findTestStepBy(event).ifPresent(testStep -> {
             String name = formatTestStepName(testStep);
-
-            Optional<Exception> error = testStepResult.getException();
+            printTestStepResult(out, timeStamp, duration, name, event, "");
             TestStepResultStatus status = testStepResult.getStatus();
-            switch (status) {
-                case SKIPPED -> {
-                    String message = error.flatMap(Exception::getMessage).orElse("Step skipped");
-                    out.print(TEMPLATE_TEST_IGNORED, timeStamp, duration, message, name);
-                }
-                case PENDING -> {
-                    String details = error.flatMap(Exception::getMessage).orElse("");
-                    out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step pending", details, name);
-                }
-                case UNDEFINED -> {
-                    String snippets = findSnippets(event).orElse("");
-                    out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step undefined", snippets, name);
-                }
-                case AMBIGUOUS, FAILED -> {
-                    String details = error.flatMap(Exception::getStackTrace).orElse("");
-                    String message = error.flatMap(Exception::getMessage).orElse(null);
-                    if (message == null) {
-                        out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step failed", details, name);
-                        break;
-                    }
-                    ComparisonFailure comparisonFailure = ComparisonFailure.parse(message.trim());
-                    if (comparisonFailure == null) {
-                        out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step failed", details, name);
-                        break;
-                    }
-                    out.print(TEMPLATE_TEST_COMPARISON_FAILED, timeStamp, duration, "Step failed", details,
-                            comparisonFailure.getExpected(), comparisonFailure.getActual(), name);
+            boolean passedHook = testStep.getHookId().isPresent() && status == TestStepResultStatus.PASSED;
+            out.print(passedHook ? LOW_FINISHED : NORMAL, TEMPLATE_TEST_FINISHED, timeStamp, duration, name);
+        });
+    }
+
+    /**
+     * Prints the result of a test step that did not pass as the result of
+     * the test {@code name}. The {@code detailsSuffix} is appended to the
+     * details of a failure.
+     */
+    private void printTestStepResult(
+            TeamCityCommandWriter out, String timeStamp, long duration, String name, TestStepFinished event,
+            String detailsSuffix
+    ) {
+        TestStepResult testStepResult = event.getTestStepResult();
+        Optional<Exception> error = testStepResult.getException();
+        switch (testStepResult.getStatus()) {
+            case SKIPPED -> {
+                String message = error.flatMap(Exception::getMessage).orElse("Step skipped");
+                out.print(TEMPLATE_TEST_IGNORED, timeStamp, duration, message, name);
+            }
+            case PENDING -> {
+                String details = error.flatMap(Exception::getMessage).orElse("") + detailsSuffix;
+                out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step pending", details, name);
+            }
+            case UNDEFINED -> {
+                String snippets = findSnippets(event).orElse("") + detailsSuffix;
+                out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step undefined", snippets, name);
+            }
+            case AMBIGUOUS, FAILED -> {
+                String details = error.flatMap(Exception::getStackTrace).orElse("") + detailsSuffix;
+                String message = error.flatMap(Exception::getMessage).orElse(null);
+                if (message == null) {
+                    out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step failed", details, name);
+                    break;
                 }
-                default -> {
+                ComparisonFailure comparisonFailure = ComparisonFailure.parse(message.trim());
+                if (comparisonFailure == null) {
+                    out.print(TEMPLATE_TEST_FAILED, timeStamp, duration, "Step failed", details, name);
+                    break;
                 }
+                out.print(TEMPLATE_TEST_COMPARISON_FAILED, timeStamp, duration, "Step failed", details,
+                        comparisonFailure.getExpected(), comparisonFailure.getActual(), name);
             }
-            out.print(TEMPLATE_TEST_FINISHED, timeStamp, duration, name);
-        });
+            default -> {
+            }
+        }
     }
 
     private String formatTestStepName(TestStep testStep) {
-        return query.findPickleStepBy(testStep)
+        return query.get().findPickleStepBy(testStep)
                 .map(PickleStep::getText)
-                .orElseGet(() -> query.findHookBy(testStep)
+                .orElseGet(() -> query.get().findHookBy(testStep)
                         .map(TeamCityWriter::formatHookStepName)
                         .orElse("Unknown step"));
     }
 
-    private static String formatHookStepName(Hook hook) {
+    static String formatHookStepName(Hook hook) {
         String hookType = getHookType(hook);
         String name = hook.getName()
                 .map(hookName -> "(" + hookName + ")")
@@ -365,27 +758,60 @@ final class TeamCityWriter implements AutoCloseable {
     }
 
     private Optional<String> findSnippets(TestStepFinished event) {
-        return query.findPickleBy(event)
-                .map(query::findSuggestionsBy)
-                .map(SuggestionFormatter::format);
+        return query.get().findPickleBy(event)
+                .map(pickle -> snippetCache.format(query.get().findSuggestionsBy(pickle), () -> formatPickleLocation(pickle)));
+    }
+
+    private String formatPickleLocation(Pickle pickle) {
+        return query.get().findLocationOf(pickle)
+                .map(location -> pickle.getUri() + ":" + location.getLine())
+                .orElse(pickle.getUri());
     }
 
     private void printTestCaseFinished(TestCaseFinished event) {
+        // A hook that started but never finished.
+        printPendingHook(event.getTestCaseStartedId());
         String timestamp = formatTimeStamp(event.getTimestamp());
-        out.print(TEMPLATE_PROGRESS_TEST_FINISHED, timestamp);
-        finishNode(timestamp, currentLineage.remove(currentLineage.size() - 1));
+        if (scenariosAsTests) {
+            StartedScenario started = startedScenariosByTestCaseStartedId.remove(
+                    startedScenarioIds.release(event.getTestCaseStartedId()));
+            if (started != null) {
+                printScenarioFinished(timestamp, event, started);
+            }
+        }
+        if (progressThrottle.isTestFinishedDue(event.getTimestamp())) {
+            out.print(LOW, TEMPLATE_PROGRESS_TEST_FINISHED, timestamp);
+        }
+        if (!scenariosAsTests) {
+            finishNode(timestamp, currentLineage.remove(currentLineage.size() - 1));
+        }
     }
 
     private void printTestRunFinished(TestRunFinished event) {
         String timestamp = formatTimeStamp(event.getTimestamp());
-        out.print(TEMPLATE_PROGRESS_COUNTING_FINISHED, timestamp);
+        if (printTestRun) {
+            out.print(TEMPLATE_PROGRESS_COUNTING_FINISHED, timestamp);
+        }
 
         List<LineageNode> emptyPath = new ArrayList<>();
         poppedNodes(emptyPath).forEach(node -> finishNode(timestamp, node));
         currentLineage = emptyPath;
 
         printBeforeAfterAllResult(event, timestamp);
-        out.print(TEMPLATE_TEST_RUN_FINISHED, timestamp);
+        if (printTestRun) {
+            out.print(TEMPLATE_TEST_RUN_FINISHED, timestamp);
+        }
+        reports.forEach(report -> report.print(out));
+    }
+
+    /**
+     * Prints the messages that close a test run opened with
+     * {@link #printTestRunStarted(TeamCityCommandWriter, Timestamp)}.
+     */
+    static void printTestRunFinished(TeamCityCommandWriter out, Timestamp timestamp) {
+        String formatted = formatTimeStamp(timestamp);
+        out.print(TEMPLATE_PROGRESS_COUNTING_FINISHED, formatted);
+        out.print(TEMPLATE_TEST_RUN_FINISHED, formatted);
     }
 
     private void printBeforeAfterAllResult(TestRunFinished event, String timestamp) {
@@ -402,19 +828,37 @@ final class TeamCityWriter implements AutoCloseable {
     }
 
     private void handleAttachment(Attachment event) {
-        handleAttachment(extractAttachmentMessage(event));
+        String message = extractAttachmentMessage(event);
+        if (isHeldBackWithPendingHook(event, message)) {
+            return;
+        }
+        handleAttachment(message);
+    }
+
+    private boolean isHeldBackWithPendingHook(Attachment event, String message) {
+        if (passingHookCollapser == null) {
+            return false;
+        }
+        Optional<String> testCaseStartedId = event.getTestCaseStartedId();
+        Optional<String> testStepId = event.getTestStepId();
+        return testCaseStartedId.isPresent() && testStepId.isPresent()
+                && passingHookCollapser.holdAttachment(testCaseStartedId.get(), testStepId.get(), message);
     }
 
     private void handleAttachment(String message) {
-        out.print(TEMPLATE_ATTACH_WRITE_EVENT, message);
+        handleAttachment(out, message);
+    }
+
+    private static void handleAttachment(TeamCityCommandWriter out, String message) {
+        out.print(LOW, TEMPLATE_MESSAGE, message);
     }
 
-    private static String extractAttachmentMessage(Attachment event) {
+    private String extractAttachmentMessage(Attachment event) {
         return switch (event.getContentEncoding()) {
             case IDENTITY -> """
                     Write event:
                     %s
-                    """.formatted(event.getBody());
+                    """.formatted(attachmentLimiter.limit(event));
             case BASE64 -> {
                 String name = event.getFileName().map(s -> s + " ").orElse("");
                 yield """
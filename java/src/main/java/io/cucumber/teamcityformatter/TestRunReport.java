@@ -0,0 +1,20 @@
+package io.cucumber.teamcityformatter;
+
+/**
+ * A report that is collected during the test run and printed once the test
+ * run has finished.
+ */
+interface TestRunReport {
+
+    /**
+     * Registers the handlers that update the report. Messages are routed to
+     * the report after they have been added to the
+     * {@link io.cucumber.query.Query}.
+     */
+    void register(EnvelopeRouter.Builder router);
+
+    /**
+     * Prints the report. Invoked once, after the test run has finished.
+     */
+    void print(TeamCityCommandWriter out);
+}
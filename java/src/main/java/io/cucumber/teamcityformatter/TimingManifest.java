@@ -0,0 +1,149 @@
+package io.cucumber.teamcityformatter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads, writes and merges timing manifests.
+ * <p>
+ * A timing manifest has a line per scenario with the tab separated uri,
+ * line, duration in milliseconds, number of runs the duration is averaged
+ * over, status and name of its pickle. Lines starting with {@code #} are
+ * ignored. Manifests are written by
+ * {@link MessagesToTeamCityWriter.Builder#timingManifest(Path)}, and can be
+ * merged into rolling averages to balance shards by expected duration.
+ */
+public final class TimingManifest {
+
+    private static final String HEADER = "# uri\tline\tduration\truns\tstatus\tname";
+
+    private TimingManifest() {
+        /* no-op */
+    }
+
+    /**
+     * Merges manifests into a manifest with the average duration of each
+     * scenario.
+     * <p>
+     * Each scenario is averaged over at most {@code window} runs. Once a
+     * scenario has been averaged over {@code window} runs, older runs weigh
+     * less with every merge. The status and name are taken from the last
+     * manifest that contains the scenario. Missing manifests are skipped.
+     *
+     * @param manifests the manifests to merge, from oldest to newest
+     * @param merged    the manifest to write, may be one of the manifests
+     * @param window    the number of runs to average over
+     * @throws IOException if a manifest could not be read or written
+     */
+    public static void merge(List<Path> manifests, Path merged, int window) throws IOException {
+        requireNonNull(manifests);
+        requireNonNull(merged);
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1, but was " + window);
+        }
+        Map<String, Entry> entriesByLocation = new LinkedHashMap<>();
+        for (Path manifest : manifests) {
+            if (!Files.exists(manifest)) {
+                continue;
+            }
+            for (Entry entry : read(manifest)) {
+                entriesByLocation.merge(entry.getLocation(), entry, (older, newer) -> older.merge(newer, window));
+            }
+        }
+        write(merged, entriesByLocation.values());
+    }
+
+    static List<Entry> read(Path manifest) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    Entry.parse(line).ifPresent(entries::add);
+                }
+            }
+        }
+        return entries;
+    }
+
+    static void write(Path manifest, Collection<Entry> entries) throws IOException {
+        Path parent = manifest.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(manifest, UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : entries) {
+                writer.write(entry.format());
+                writer.newLine();
+            }
+        }
+    }
+
+    static final class Entry {
+        private final String uri;
+        private final int line;
+        private final long millis;
+        private final int runs;
+        private final String status;
+        private final String name;
+
+        Entry(String uri, int line, long millis, int runs, String status, String name) {
+            this.uri = uri;
+            this.line = line;
+            this.millis = millis;
+            this.runs = runs;
+            this.status = status;
+            this.name = name;
+        }
+
+        static Optional<Entry> parse(String line) {
+            String[] fields = line.split("\t", 6);
+            if (fields.length != 6) {
+                return Optional.empty();
+            }
+            try {
+                int runs = Integer.parseInt(fields[3]);
+                if (runs < 1) {
+                    return Optional.empty();
+                }
+                return Optional.of(new Entry(fields[0], Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[2]), runs, fields[4], fields[5]));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+
+        String getLocation() {
+            return uri + ":" + line;
+        }
+
+        Entry merge(Entry newer, int window) {
+            int older = Math.min(runs, window);
+            int total = older + newer.runs;
+            long average = Math.round((double) (millis * older + newer.millis * newer.runs) / total);
+            return new Entry(uri, line, average, Math.min(total, window), newer.status, newer.name);
+        }
+
+        String format() {
+            return clean(uri) + "\t" + line + "\t" + millis + "\t" + runs + "\t" + status + "\t" + clean(name);
+        }
+
+        private static String clean(String value) {
+            return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+    }
+}
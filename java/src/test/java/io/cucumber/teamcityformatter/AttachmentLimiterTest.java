@@ -0,0 +1,32 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AttachmentLimiterTest {
+
+    @Test
+    void counts_utf8_bytes() {
+        assertThat(AttachmentLimiter.utf8Length("hello")).isEqualTo(5);
+        assertThat(AttachmentLimiter.utf8Length("héllo")).isEqualTo("héllo".getBytes(UTF_8).length);
+        assertThat(AttachmentLimiter.utf8Length("€")).isEqualTo(3);
+        assertThat(AttachmentLimiter.utf8Length("🥒")).isEqualTo(4);
+    }
+
+    @Test
+    void truncates_to_byte_limit() {
+        assertThat(AttachmentLimiter.truncate("hello", 3)).isEqualTo("hel");
+        assertThat(AttachmentLimiter.truncate("hello", 10)).isEqualTo("hello");
+        assertThat(AttachmentLimiter.truncate("hello", 0)).isEmpty();
+    }
+
+    @Test
+    void does_not_split_multi_byte_characters() {
+        assertThat(AttachmentLimiter.truncate("h€llo", 3)).isEqualTo("h");
+        assertThat(AttachmentLimiter.truncate("h€llo", 4)).isEqualTo("h€");
+        assertThat(AttachmentLimiter.truncate("a🥒b", 4)).isEqualTo("a");
+        assertThat(AttachmentLimiter.truncate("a🥒b", 5)).isEqualTo("a🥒");
+    }
+}
@@ -0,0 +1,61 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy.EVERY_MESSAGE;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy.ON_CLOSE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChannelSinkTest {
+
+    private static final String[] MESSAGES = {
+            "short\n",
+            "exactly 16 bytes",
+            "a message that is longer than all buffers combined\n",
+            "",
+            "last\n"
+    };
+
+    @Test
+    void writes_messages_with_gathering_writes(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("out.log");
+        try (FileChannel channel = FileChannel.open(file, CREATE, WRITE)) {
+            writeMessages(new ChannelSink(channel, ON_CLOSE, 2, 16));
+        }
+        assertThat(Files.readString(file)).isEqualTo(String.join("", MESSAGES));
+    }
+
+    @Test
+    void writes_messages_to_non_gathering_channel() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeMessages(new ChannelSink(Channels.newChannel(bytes), ON_CLOSE, 2, 16));
+        assertThat(bytes.toString(UTF_8)).isEqualTo(String.join("", MESSAGES));
+    }
+
+    @Test
+    void writes_every_message() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChannelSink sink = new ChannelSink(Channels.newChannel(bytes), EVERY_MESSAGE, 2, 16);
+        sink.write("first\n".getBytes(UTF_8));
+        assertThat(bytes.toString(UTF_8)).isEqualTo("first\n");
+        sink.close();
+    }
+
+    private static void writeMessages(ChannelSink sink) {
+        for (String message : MESSAGES) {
+            sink.write(message.getBytes(UTF_8));
+        }
+        sink.close();
+    }
+}
@@ -0,0 +1,143 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Envelope;
+import io.cucumber.messages.types.Pickle;
+import io.cucumber.messages.types.TestCase;
+import io.cucumber.messages.types.TestCaseFinished;
+import io.cucumber.messages.types.TestCaseStarted;
+import io.cucumber.messages.types.TestStep;
+import io.cucumber.messages.types.TestStepFinished;
+import io.cucumber.messages.types.TestStepStarted;
+import io.cucumber.query.Query;
+import io.cucumber.query.Repository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static io.cucumber.query.Repository.RepositoryFeature.INCLUDE_GHERKIN_DOCUMENTS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompactingRepositoryTest {
+
+    private static final int COPIES = 1000;
+
+    @Test
+    void retains_a_constant_number_of_messages() throws IOException {
+        CompactingRepository repository = new CompactingRepository(CompactingRepositoryTest::createRepository, 64);
+        int maxSize = 0;
+        int testCasesStarted = 0;
+        for (Envelope envelope : generateWithSharedGlue()) {
+            repository.update(ClassifiedEnvelope.of(envelope));
+            maxSize = Math.max(maxSize, repository.size());
+            Optional<TestCaseStarted> testCaseStarted = envelope.getTestCaseStarted();
+            if (testCaseStarted.isPresent()) {
+                testCasesStarted++;
+                Query query = repository.getQuery();
+                Optional<Pickle> pickle = query.findPickleBy(testCaseStarted.get());
+                assertThat(pickle).isPresent();
+                assertThat(query.findLineageBy(pickle.get())).isPresent();
+            }
+        }
+
+        assertThat(testCasesStarted).isEqualTo(COPIES);
+        assertThat(maxSize).isLessThan(256);
+    }
+
+    @Test
+    void retains_held_test_cases_until_released() throws IOException {
+        CompactingRepository repository = new CompactingRepository(CompactingRepositoryTest::createRepository, 0);
+        List<Envelope> messages = generateWithSharedGlue();
+        TestCaseStarted held = null;
+        for (Envelope envelope : messages) {
+            repository.update(ClassifiedEnvelope.of(envelope));
+            Optional<TestCaseStarted> testCaseStarted = envelope.getTestCaseStarted();
+            if (held == null && testCaseStarted.isPresent()) {
+                held = testCaseStarted.get();
+                repository.hold(held.getId());
+            }
+        }
+        assertThat(held).isNotNull();
+
+        Query query = repository.getQuery();
+        assertThat(query.findTestCaseFinishedBy(held)).isPresent();
+        assertThat(query.findPickleBy(held)).isPresent();
+
+        repository.release(held.getId());
+        try (Stream<Envelope> more = SyntheticMessages.generate(SyntheticMessages.fixture("minimal"), COPIES,
+                (line, copy) -> IdPrefixer.prefixIds(line, "more-"))) {
+            more.map(ClassifiedEnvelope::of).forEach(repository::update);
+        }
+
+        assertThat(repository.getQuery().findTestCaseFinishedBy(held)).isEmpty();
+    }
+
+    @Test
+    void retains_everything_when_never_compacting() throws IOException {
+        CompactingRepository repository = new CompactingRepository(
+                CompactingRepositoryTest::createRepository, CompactingRepository.NEVER);
+        generateWithSharedGlue().stream().map(ClassifiedEnvelope::of).forEach(repository::update);
+
+        assertThat(repository.size()).isZero();
+        assertThat(repository.getQuery().findAllTestCaseStarted()).hasSize(COPIES);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {CompactingRepository.NEVER, 64})
+    void retains_each_id_once(int compactionThreshold) throws IOException {
+        CompactingRepository repository = new CompactingRepository(
+                CompactingRepositoryTest::createRepository, compactionThreshold);
+        generateWithSharedGlue().stream().map(ClassifiedEnvelope::of).forEach(repository::update);
+
+        Query query = repository.getQuery();
+        assertThat(query.findAllTestCaseStarted()).isNotEmpty();
+        for (TestCaseStarted testCaseStarted : query.findAllTestCaseStarted()) {
+            TestCase testCase = query.findTestCaseBy(testCaseStarted).orElseThrow();
+            assertThat(testCaseStarted.getTestCaseId()).isSameAs(testCase.getId());
+            for (TestStepStarted testStepStarted : query.findTestStepsStartedBy(testCaseStarted)) {
+                assertThat(testStepStarted.getTestCaseStartedId()).isSameAs(testCaseStarted.getId());
+                assertThat(testStepStarted.getTestStepId())
+                        .isSameAs(query.findTestStepBy(testStepStarted).map(TestStep::getId).orElseThrow());
+            }
+            for (TestStepFinished testStepFinished : query.findTestStepsFinishedBy(testCaseStarted)) {
+                assertThat(testStepFinished.getTestCaseStartedId()).isSameAs(testCaseStarted.getId());
+                assertThat(testStepFinished.getTestStepId())
+                        .isSameAs(query.findTestStepBy(testStepFinished).map(TestStep::getId).orElseThrow());
+            }
+            assertThat(query.findTestCaseFinishedBy(testCaseStarted).map(TestCaseFinished::getTestCaseStartedId))
+                    .containsSame(testCaseStarted.getId());
+        }
+    }
+
+    @Test
+    void does_not_retain_attachments() throws IOException {
+        CompactingRepository repository = new CompactingRepository(CompactingRepositoryTest::createRepository, 4096);
+        List<Envelope> messages = SyntheticMessages.read(SyntheticMessages.fixture("attachments"));
+        messages.stream().map(ClassifiedEnvelope::of).forEach(repository::update);
+
+        long attachments = messages.stream().filter(envelope -> envelope.getAttachment().isPresent()).count();
+        assertThat(attachments).isPositive();
+        assertThat(repository.size()).isEqualTo(messages.size() - attachments);
+    }
+
+    private static List<Envelope> generateWithSharedGlue() throws IOException {
+        // Every copy has its own step definitions, a real test run has not.
+        try (Stream<Envelope> messages = SyntheticMessages.generate(SyntheticMessages.fixture("minimal"), COPIES)) {
+            return messages
+                    .filter(envelope -> envelope.getStepDefinition()
+                            .map(stepDefinition -> stepDefinition.getId().startsWith("0-"))
+                            .orElse(true))
+                    .toList();
+        }
+    }
+
+    private static Repository createRepository() {
+        return Repository.builder()
+                .feature(INCLUDE_GHERKIN_DOCUMENTS, true)
+                .build();
+    }
+}
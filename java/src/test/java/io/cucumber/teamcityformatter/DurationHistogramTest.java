@@ -0,0 +1,51 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DurationHistogramTest {
+
+    @Test
+    void is_empty_by_default() {
+        DurationHistogram histogram = new DurationHistogram();
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getTotal()).isZero();
+        assertThat(histogram.getMax()).isZero();
+        assertThat(histogram.getValueAtPercentile(50)).isZero();
+    }
+
+    @Test
+    void records_small_durations_exactly() {
+        DurationHistogram histogram = new DurationHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getCount()).isEqualTo(10);
+        assertThat(histogram.getTotal()).isEqualTo(55);
+        assertThat(histogram.getMax()).isEqualTo(10);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(5);
+        assertThat(histogram.getValueAtPercentile(95)).isEqualTo(10);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(10);
+    }
+
+    @Test
+    void records_large_durations_approximately() {
+        DurationHistogram histogram = new DurationHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10L);
+        }
+        assertThat(histogram.getMax()).isEqualTo(10_000);
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(5_000L, 5_625L);
+        assertThat(histogram.getValueAtPercentile(99)).isBetween(9_900L, 10_000L);
+    }
+
+    @Test
+    void records_extreme_durations() {
+        DurationHistogram histogram = new DurationHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.getValueAtPercentile(50)).isZero();
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(Long.MAX_VALUE);
+    }
+}
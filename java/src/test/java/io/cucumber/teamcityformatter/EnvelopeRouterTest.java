@@ -0,0 +1,67 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Envelope;
+import io.cucumber.messages.types.TestRunFinished;
+import io.cucumber.messages.types.TestRunStarted;
+import io.cucumber.messages.types.Timestamp;
+import io.cucumber.teamcityformatter.ClassifiedEnvelope.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EnvelopeRouterTest {
+
+    private static final ClassifiedEnvelope testRunStarted = ClassifiedEnvelope.of(
+            Envelope.of(new TestRunStarted(new Timestamp(0L, 0), "run")));
+    private static final ClassifiedEnvelope testRunFinished = ClassifiedEnvelope.of(
+            Envelope.of(new TestRunFinished(null, true, new Timestamp(0L, 0), null, "run")));
+
+    @Test
+    void classifies_envelopes_by_the_message_they_contain() {
+        assertThat(testRunStarted.getType()).isEqualTo(MessageType.TEST_RUN_STARTED);
+        assertThat(testRunStarted.getMessage(TestRunStarted.class).getId()).contains("run");
+        assertThat(testRunFinished.getType()).isEqualTo(MessageType.TEST_RUN_FINISHED);
+        assertThat(MessageType.of(TestRunFinished.class)).isEqualTo(MessageType.TEST_RUN_FINISHED);
+        assertThat(MessageType.of(Envelope.class)).isNull();
+    }
+
+    @Test
+    void routes_messages_to_handlers_in_order_of_registration() {
+        List<String> handled = new ArrayList<>();
+        EnvelopeRouter router = EnvelopeRouter.builder()
+                .on(TestRunStarted.class, event -> handled.add("first " + event.getId().orElse("")))
+                .on(TestRunStarted.class, event -> handled.add("second " + event.getId().orElse("")))
+                .build();
+
+        router.route(testRunStarted);
+
+        assertThat(handled).containsExactly("first run", "second run");
+    }
+
+    @Test
+    void ignores_messages_without_handlers() {
+        List<String> handled = new ArrayList<>();
+        EnvelopeRouter router = EnvelopeRouter.builder()
+                .on(TestRunFinished.class, event -> handled.add("finished"))
+                .build();
+
+        router.route(testRunStarted);
+        router.route(testRunFinished);
+        EnvelopeRouter.builder().build().route(testRunFinished);
+
+        assertThat(handled).containsExactly("finished");
+    }
+
+    @Test
+    void rejects_types_that_are_not_messages() {
+        EnvelopeRouter.Builder builder = EnvelopeRouter.builder();
+
+        assertThat(EnvelopeRouter.isRoutable(TestRunStarted.class)).isTrue();
+        assertThrows(IllegalArgumentException.class, () -> builder.on(Envelope.class, event -> {
+        }));
+    }
+}
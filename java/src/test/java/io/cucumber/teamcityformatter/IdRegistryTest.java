@@ -0,0 +1,119 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IdRegistryTest {
+
+    @Test
+    void assigns_dense_ints_in_order_of_first_sight() {
+        IdRegistry ids = new IdRegistry();
+
+        assertThat(ids.register("a")).isZero();
+        assertThat(ids.register("b")).isEqualTo(1);
+        assertThat(ids.register("a")).isZero();
+        assertThat(ids.size()).isEqualTo(2);
+    }
+
+    @Test
+    void finds_registered_ids() {
+        IdRegistry ids = new IdRegistry();
+        List<String> registered = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String id = UUID.randomUUID().toString();
+            registered.add(id);
+            ids.register(id);
+        }
+
+        for (int i = 0; i < registered.size(); i++) {
+            assertThat(ids.find(registered.get(i))).isEqualTo(i);
+        }
+        assertThat(ids.find("unknown")).isEqualTo(IdRegistry.UNKNOWN);
+    }
+
+    @Test
+    void reuses_the_ints_of_released_ids() {
+        IdRegistry ids = new IdRegistry();
+        ids.register("a");
+        ids.register("b");
+
+        assertThat(ids.release("a")).isZero();
+        assertThat(ids.release("a")).isEqualTo(IdRegistry.UNKNOWN);
+        assertThat(ids.find("a")).isEqualTo(IdRegistry.UNKNOWN);
+        assertThat(ids.find("b")).isEqualTo(1);
+        assertThat(ids.register("c")).isZero();
+        assertThat(ids.size()).isEqualTo(2);
+    }
+
+    @Test
+    void grows_with_the_ids_in_use_rather_than_the_ids_seen() {
+        IdRegistry ids = new IdRegistry();
+        Deque<String> inUse = new ArrayDeque<>();
+        int largest = 0;
+        for (int i = 0; i < 100_000; i++) {
+            String id = UUID.randomUUID().toString();
+            inUse.add(id);
+            largest = Math.max(largest, ids.register(id));
+            if (inUse.size() > 10) {
+                ids.release(inUse.remove());
+            }
+        }
+
+        assertThat(largest).isLessThan(11);
+        assertThat(ids.size()).isEqualTo(10);
+        for (String id : inUse) {
+            assertThat(ids.find(id)).isNotEqualTo(IdRegistry.UNKNOWN);
+        }
+    }
+
+    @Test
+    void retains_less_heap_than_a_hash_map() {
+        List<String> registered = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            registered.add(UUID.randomUUID().toString());
+        }
+        Object value = new Object();
+
+        Map<String, Object> map = new HashMap<>();
+        registered.forEach(id -> map.put(id, value));
+        IdRegistry ids = new IdRegistry();
+        IdRegistry.Index<Object> index = new IdRegistry.Index<>();
+        registered.forEach(id -> index.put(ids.register(id), value));
+
+        // The ids are retained by the messages either way. Each is a root.
+        long idStrings = GraphLayout.parseInstance(registered.toArray()).totalSize();
+        long retainedByMap = GraphLayout.parseInstance(map).totalSize() - idStrings;
+        long retainedByRegistry = GraphLayout.parseInstance(ids, index).totalSize() - idStrings;
+
+        assertThat(map).hasSize(ids.size());
+        assertThat(index.get(0)).isSameAs(value);
+        assertThat(retainedByRegistry).isLessThan(retainedByMap * 4 / 5);
+    }
+
+    @Test
+    void index_stores_values_by_int() {
+        IdRegistry.Index<String> index = new IdRegistry.Index<>();
+
+        index.put(100, "value");
+
+        assertThat(index.get(100)).isEqualTo("value");
+        assertThat(index.get(IdRegistry.UNKNOWN)).isNull();
+        assertThat(index.get(1000)).isNull();
+        index.put(1, "first");
+        List<String> values = new ArrayList<>();
+        index.forEach(values::add);
+        assertThat(values).containsExactly("first", "value");
+        assertThat(index.remove(100)).isEqualTo("value");
+        assertThat(index.get(100)).isNull();
+    }
+}
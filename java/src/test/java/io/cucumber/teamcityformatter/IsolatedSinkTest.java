@@ -0,0 +1,74 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class IsolatedSinkTest {
+
+    @Test
+    void writes_messages_in_order() {
+        RecordingSink delegate = new RecordingSink(Integer.MAX_VALUE);
+        IsolatedSink sink = new IsolatedSink(delegate, 1, "test");
+        sink.write(bytes("a"));
+        sink.write(bytes("b"));
+        sink.close();
+
+        assertThat(delegate.written).containsExactly("a", "b");
+        assertThat(delegate.closed).isTrue();
+        assertThat(sink.isFailed()).isFalse();
+    }
+
+    @Test
+    void discards_messages_once_the_delegate_failed() {
+        RecordingSink delegate = new RecordingSink(2);
+        IsolatedSink sink = new IsolatedSink(delegate, 1, "test");
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            // Far more messages than fit in the queue
+            for (int i = 0; i < 100; i++) {
+                sink.write(bytes(String.valueOf(i)));
+            }
+            sink.close();
+        });
+
+        assertThat(delegate.written).containsExactly("0", "1");
+        assertThat(delegate.closed).isTrue();
+        assertThat(sink.isFailed()).isTrue();
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(UTF_8);
+    }
+
+    private static final class RecordingSink implements MessageSink {
+        private final int failAfter;
+        private final List<String> written = new ArrayList<>();
+        private volatile boolean closed;
+
+        private RecordingSink(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public void write(byte[] message) {
+            if (written.size() == failAfter) {
+                throw new UncheckedIOException(new IOException("broken"));
+            }
+            written.add(new String(message, UTF_8));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
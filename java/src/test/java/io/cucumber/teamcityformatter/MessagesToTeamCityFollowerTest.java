@@ -0,0 +1,128 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.NdjsonToMessageReader;
+import io.cucumber.messages.ndjson.Json;
+import io.cucumber.messages.types.Envelope;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MessagesToTeamCityFollowerTest {
+
+    private static final NdjsonToMessageReader.Deserializer deserializer = Json.instance()
+            .map(json -> json.deserializer(Envelope.class))
+            .orElseThrow()::readValue;
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void it_writes_lines_as_they_are_appended() throws IOException {
+        Path file = temp.resolve("cucumber.ndjson");
+        byte[] fixture = Files.readAllBytes(SyntheticMessages.fixture("minimal"));
+        // Splits lines, and creates the file after the follower started
+        CompletableFuture<Void> appender = CompletableFuture.runAsync(() -> append(file, fixture, 97));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean finished = follower().follow(file, bytes);
+        appender.join();
+
+        assertThat(finished).isTrue();
+        assertThat(new String(bytes.toByteArray(), UTF_8)).isEqualTo(render("minimal"));
+    }
+
+    @Test
+    void it_writes_lines_longer_than_a_read() throws IOException {
+        Path file = temp.resolve("cucumber.ndjson");
+        String padding = "x".repeat(256 * 1024);
+        List<String> lines = Files.readAllLines(SyntheticMessages.fixture("attachments"), UTF_8).stream()
+                .map(line -> line.replace("\"body\":\"hello\"", "\"body\":\"hello" + padding + "\""))
+                .toList();
+        Files.write(file, lines, UTF_8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean finished = follower().follow(file, bytes);
+
+        assertThat(finished).isTrue();
+        assertThat(new String(bytes.toByteArray(), UTF_8)).isEqualTo(render(file));
+    }
+
+    @Test
+    void it_stops_when_nothing_is_appended() throws IOException {
+        Path file = temp.resolve("cucumber.ndjson");
+        List<String> lines = Files.readAllLines(SyntheticMessages.fixture("minimal"), UTF_8);
+        Files.write(file, lines.subList(0, lines.size() - 1), UTF_8);
+        // A partially written line is never parsed
+        Files.writeString(file, "{\"testRunFin", UTF_8, APPEND);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean finished = follower().follow(file, bytes);
+
+        assertThat(finished).isFalse();
+        assertThat(new String(bytes.toByteArray(), UTF_8))
+                .contains("##teamcity[testFinished")
+                .doesNotContain("##teamcity[testSuiteFinished timestamp = '1970-01-01T12:00:00.005+0000' name = 'Cucumber']");
+    }
+
+    @Test
+    void it_rejects_an_empty_poll_interval() {
+        MessagesToTeamCityFollower.Builder builder = MessagesToTeamCityFollower.builder(deserializer);
+        assertThatThrownBy(() -> builder.pollInterval(Duration.ZERO))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("pollInterval must be positive, but was PT0S");
+        assertThatThrownBy(() -> builder.timeout(Duration.ofSeconds(-1)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("timeout must be positive, but was PT-1S");
+    }
+
+    private static MessagesToTeamCityFollower follower() {
+        return MessagesToTeamCityFollower.builder(deserializer)
+                .pollInterval(Duration.ofMillis(10))
+                .timeout(Duration.ofMillis(500))
+                .build();
+    }
+
+    private static void append(Path file, byte[] bytes, int chunkSize) {
+        try {
+            for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                Thread.sleep(5);
+                try (OutputStream out = Files.newOutputStream(file, CREATE, APPEND)) {
+                    out.write(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String render(String fixture) throws IOException {
+        return render(SyntheticMessages.fixture(fixture));
+    }
+
+    private static String render(Path messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MessagesToTeamCityWriter writer = MessagesToTeamCityWriter.builder().build(bytes)) {
+            for (Envelope envelope : SyntheticMessages.read(messages)) {
+                writer.write(envelope);
+            }
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,191 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.NdjsonToMessageReader;
+import io.cucumber.messages.ndjson.Json;
+import io.cucumber.messages.types.Envelope;
+import io.cucumber.teamcityformatter.MessagesToTeamCityMerger.MergeMode;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MessagesToTeamCityMergerTest {
+
+    private static final NdjsonToMessageReader.Deserializer deserializer = Json.instance()
+            .map(json -> json.deserializer(Envelope.class))
+            .orElseThrow()::readValue;
+
+    @Test
+    void it_writes_each_shard_as_a_flow() throws IOException {
+        String output = merge(MergeMode.FLOW_ID, "minimal", "examples-tables");
+
+        assertThat(output.lines()).allMatch(line -> !line.contains("flowId")
+                || line.endsWith(" flowId = 'shard-0']") || line.endsWith(" flowId = 'shard-1']"));
+        assertThat(linesOfFlow(output, "shard-0")).isEqualTo(withoutTestRun(render("minimal")));
+        assertThat(linesOfFlow(output, "shard-1")).isEqualTo(withoutTestRun(render("examples-tables")));
+    }
+
+    @Test
+    void it_writes_the_flows_inside_a_single_test_run() throws IOException {
+        String output = merge(MergeMode.FLOW_ID, "minimal", "examples-tables");
+
+        List<String> testRun = output.lines().filter(line -> !line.contains("flowId")).toList();
+        assertThat(testRun).hasSize(5);
+        assertThat(testRun.get(0)).contains("enteredTheMatrix");
+        assertThat(testRun.get(4)).contains("testSuiteFinished").endsWith("name = 'Cucumber']");
+        assertThat(output.lines().findFirst()).hasValue(testRun.get(0));
+        assertThat(output.lines().reduce((first, second) -> second)).hasValue(testRun.get(4));
+    }
+
+    @Test
+    void it_does_not_share_files_between_flows() {
+        MessagesToTeamCityMerger.Builder builder = MessagesToTeamCityMerger.builder(deserializer)
+                .writer(MessagesToTeamCityWriter.builder().timingManifest(Path.of("timings.csv")));
+
+        assertThrows(IllegalStateException.class, builder::build);
+        assertThat(builder.mode(MergeMode.CANONICAL).build()).isNotNull();
+    }
+
+    @Test
+    void it_writes_a_single_test_run() throws IOException {
+        String output = merge(MergeMode.CANONICAL, "minimal", "examples-tables");
+
+        assertThat(output)
+                .containsOnlyOnce("enteredTheMatrix")
+                .contains("name = 'Examples Tables']", "name = 'minimal']")
+                .doesNotContain("flowId");
+        assertThat(countLinesContaining(output, "name = 'Cucumber']")).isEqualTo(2);
+        assertThat(countLinesContaining(output, "testStarted timestamp"))
+                .isEqualTo(countLinesContaining(render("minimal") + render("examples-tables"), "testStarted timestamp"));
+    }
+
+    @Test
+    void it_writes_a_single_test_run_in_canonical_order() throws IOException {
+        String output = merge(MergeMode.CANONICAL, MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true), "minimal", "examples-tables");
+
+        assertThat(output)
+                .containsOnlyOnce("enteredTheMatrix")
+                .doesNotContain("flowId");
+        assertThat(countLinesContaining(output, "name = 'Cucumber']")).isEqualTo(2);
+        assertThat(output.indexOf("name = 'Examples Tables']"))
+                .isLessThan(output.indexOf("name = 'minimal']"));
+    }
+
+    @Test
+    void it_keeps_shards_with_colliding_ids_apart() throws IOException {
+        String output = merge(MergeMode.CANONICAL, "minimal", "minimal");
+
+        assertThat(countLinesContaining(output, "testStarted timestamp")).isEqualTo(2);
+        assertThat(countLinesContaining(output, "testFinished timestamp")).isEqualTo(2);
+        assertThat(countLinesContaining(output, "name = 'Cucumber']")).isEqualTo(2);
+    }
+
+    @Test
+    void it_merges_files() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessagesToTeamCityMerger.builder(deserializer)
+                .mode(MergeMode.CANONICAL)
+                .build()
+                .mergeFiles(List.of(SyntheticMessages.fixture("minimal")), bytes);
+
+        assertThat(new String(bytes.toByteArray(), UTF_8)).isEqualTo(render("minimal"));
+    }
+
+    @Test
+    void it_prefixes_ids() {
+        String json = "{\"testCase\":{\"id\":\"5\",\"pickleId\":\"4\",\"testSteps\":[{\"id\":\"6\",\"pickleStepId\":\"2\",\"stepDefinitionIds\":[\"1\",\"3\"]}]}}";
+        assertThat(IdPrefixer.prefixIds(json, "1-")).isEqualTo(
+                "{\"testCase\":{\"id\":\"1-5\",\"pickleId\":\"1-4\",\"testSteps\":[{\"id\":\"1-6\",\"pickleStepId\":\"1-2\",\"stepDefinitionIds\":[\"1-1\",\"1-3\"]}]}}");
+    }
+
+    @Test
+    void it_does_not_prefix_ids_in_doc_strings_and_data_tables() {
+        String json = "{\"pickle\":{\"id\":\"5\",\"steps\":[{\"argument\":{"
+                + "\"docString\":{\"content\":\"{\\\"fooId\\\":\\\"x\\\"}\"},"
+                + "\"dataTable\":{\"rows\":[{\"cells\":[{\"value\":\"\\\"id\\\":\\\"x\\\"\"}]}]}},"
+                + "\"astNodeIds\":[\"1\",\"2\"],\"id\":\"3\"}]}}";
+        assertThat(IdPrefixer.prefixIds(json, "1-")).isEqualTo(json
+                .replace("\"id\":\"", "\"id\":\"1-")
+                .replace("[\"1\",\"2\"]", "[\"1-1\",\"1-2\"]"));
+    }
+
+    @Test
+    void it_only_prefixes_the_id_fields_of_a_message() {
+        String json = "{\"testCaseStarted\":{\"id\":\"2\",\"testCaseId\":\"1\",\"fooId\":\"x\"}}";
+        assertThat(IdPrefixer.prefixIds(json, "1-")).isEqualTo(
+                "{\"testCaseStarted\":{\"id\":\"1-2\",\"testCaseId\":\"1-1\",\"fooId\":\"x\"}}");
+    }
+
+    private static String merge(MergeMode mode, String... fixtures) throws IOException {
+        return merge(mode, MessagesToTeamCityWriter.builder(), fixtures);
+    }
+
+    private static String merge(
+            MergeMode mode, MessagesToTeamCityWriter.Builder writer, String... fixtures
+    ) throws IOException {
+        List<InputStream> shards = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            for (String fixture : fixtures) {
+                shards.add(Files.newInputStream(SyntheticMessages.fixture(fixture)));
+            }
+            MessagesToTeamCityMerger.builder(deserializer)
+                    .mode(mode)
+                    .writer(writer)
+                    .build()
+                    .merge(shards, bytes);
+        } finally {
+            for (InputStream shard : shards) {
+                shard.close();
+            }
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    private static String render(String fixture) throws IOException {
+        return render(fixture, MessagesToTeamCityWriter.builder());
+    }
+
+    private static String render(String fixture, MessagesToTeamCityWriter.Builder builder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MessagesToTeamCityWriter writer = builder.build(bytes)) {
+            for (Envelope envelope : SyntheticMessages.read(SyntheticMessages.fixture(fixture))) {
+                writer.write(envelope);
+            }
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    private static String linesOfFlow(String output, String flowId) {
+        String suffix = " flowId = '" + flowId + "']";
+        return output.lines()
+                .filter(line -> line.endsWith(suffix))
+                .map(line -> line.substring(0, line.length() - suffix.length()) + "]" + System.lineSeparator())
+                .collect(Collectors.joining());
+    }
+
+    private static String withoutTestRun(String output) {
+        return output.lines()
+                .filter(line -> !line.contains("enteredTheMatrix"))
+                .filter(line -> !line.endsWith("name = 'Cucumber']"))
+                .filter(line -> !line.contains("customProgressStatus testsCategory"))
+                .map(line -> line + System.lineSeparator())
+                .collect(Collectors.joining());
+    }
+
+    private static long countLinesContaining(String output, String text) {
+        return output.lines().filter(line -> line.contains(text)).count();
+    }
+}
@@ -18,6 +18,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -78,6 +80,14 @@ class MessagesToTeamCityWriterAcceptanceTest {
         assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
     }
 
+    @ParameterizedTest
+    @MethodSource("acceptance")
+    void testCompactingRepository(TestCase testCase) throws IOException {
+        MessagesToTeamCityWriter.Builder builder = testCase.builder.compactionThreshold(0);
+        ByteArrayOutputStream bytes = writePrettyReport(testCase, builder, messageOrderer.originalOrder());
+        assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
+    }
+
     private final List<String> exceptions = Arrays.asList(
             // TODO: Create issue to support global hooks in output
             "global-hooks-attachments",
@@ -108,6 +118,72 @@ class MessagesToTeamCityWriterAcceptanceTest {
         assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
     }
 
+    @ParameterizedTest
+    @MethodSource("acceptance")
+    void testPrintAfterTestRunWithParallelRendering(TestCase testCase) throws IOException {
+        assumeFalse(() -> exceptions.contains(testCase.name));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MessagesToTeamCityWriter.Builder builder = testCase.builder
+                    .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                    .renderingExecutor(executor);
+            ByteArrayOutputStream bytes = writePrettyReport(testCase, builder, messageOrderer.simulateParallelExecution());
+            assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("acceptance")
+    void testReorderWindow(TestCase testCase) throws IOException {
+        assumeFalse(() -> exceptions.contains(testCase.name));
+        MessagesToTeamCityWriter.Builder builder = testCase.builder.reorderWindow(16, 1024 * 1024);
+        ByteArrayOutputStream bytes = writePrettyReport(testCase, builder, messageOrderer.originalOrder());
+        assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("acceptance")
+    void testReorderWindowWithCompactingRepository(TestCase testCase) throws IOException {
+        assumeFalse(() -> exceptions.contains(testCase.name));
+        MessagesToTeamCityWriter.Builder builder = testCase.builder
+                .reorderWindow(16, 1024 * 1024)
+                .compactionThreshold(0);
+        ByteArrayOutputStream bytes = writePrettyReport(testCase, builder, messageOrderer.originalOrder());
+        assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("acceptance")
+    void testReorderWindowWithSimulatedParallelExecution(TestCase testCase) throws IOException {
+        assumeFalse(() -> exceptions.contains(testCase.name));
+        MessagesToTeamCityWriter.Builder builder = testCase.builder
+                .reorderWindow(Integer.MAX_VALUE, Long.MAX_VALUE)
+                .compactionThreshold(0);
+        ByteArrayOutputStream bytes = writePrettyReport(testCase, builder, messageOrderer.simulateParallelExecution());
+        assertThat(bytes.toString(UTF_8)).isEqualToIgnoringNewLines(Files.readString(testCase.expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("acceptance")
+    void testSmallestReorderWindowWithSimulatedParallelExecution(TestCase testCase) throws IOException {
+        assumeFalse(() -> exceptions.contains(testCase.name));
+        MessagesToTeamCityWriter.Builder builder = testCase.builder
+                .reorderWindow(1, 1)
+                .compactionThreshold(0);
+        ByteArrayOutputStream bytes = writePrettyReport(testCase, builder, messageOrderer.simulateParallelExecution());
+        // Test cases may be printed out of order, but none are lost.
+        assertThat(testLines(bytes.toString(UTF_8)))
+                .containsExactlyInAnyOrderElementsOf(testLines(Files.readString(testCase.expected)));
+    }
+
+    private static List<String> testLines(String output) {
+        return output.lines()
+                .filter(line -> line.startsWith("##teamcity[test") && !line.startsWith("##teamcity[testSuite"))
+                .collect(Collectors.toList());
+    }
+
     @ParameterizedTest
     @MethodSource("acceptance")
     @Disabled
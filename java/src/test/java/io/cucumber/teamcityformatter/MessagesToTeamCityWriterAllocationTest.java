@@ -0,0 +1,161 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Envelope;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.COLLAPSE_RETRIED_TEST_CASES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Guards the number of bytes allocated per message.
+ * <p>
+ * Each mode has its own budget, a modest margin above what it allocates. So
+ * a change that allocates considerably more per message fails the test.
+ * Allocations that grow with the size of the run are caught by comparing a
+ * stream to one twice its size.
+ */
+class MessagesToTeamCityWriterAllocationTest {
+
+    private static final int SYNTHETIC_COPIES = 500;
+    // Allocation per envelope may vary a little with the size of the run.
+    private static final double SCALING_MARGIN = 1.25;
+
+    static Stream<Arguments> fixtures() throws IOException {
+        List<Arguments> arguments = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(Paths.get("..", "testdata", "src"))) {
+            List<Path> sources = paths
+                    .filter(path -> path.getFileName().toString().endsWith(".ndjson"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (Path source : sources) {
+                for (Mode mode : Mode.values()) {
+                    arguments.add(Arguments.of(source.getFileName().toString(), source, mode));
+                }
+            }
+        }
+        return arguments.stream();
+    }
+
+    @ParameterizedTest(name = "{0} {2}")
+    @MethodSource("fixtures")
+    void fixture_stays_within_budget(String name, Path source, Mode mode) throws IOException {
+        List<Envelope> messages = SyntheticMessages.read(source);
+        long bytesPerEnvelope = measureBytesPerEnvelope(mode, messages);
+        assertThat(bytesPerEnvelope)
+                .describedAs("bytes allocated per envelope for %s in %s", name, mode)
+                .isLessThanOrEqualTo(mode.fixtureBudget);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Mode.class)
+    void synthetic_stream_stays_within_budget(Mode mode) throws IOException {
+        List<Envelope> messages = generate(SYNTHETIC_COPIES);
+        long bytesPerEnvelope = measureBytesPerEnvelope(mode, messages);
+        assertThat(bytesPerEnvelope)
+                .describedAs("bytes allocated per envelope in %s", mode)
+                .isLessThanOrEqualTo(mode.syntheticBudget);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Mode.class)
+    void allocation_per_envelope_does_not_grow_with_the_run(Mode mode) throws IOException {
+        long small = measureBytesPerEnvelope(mode, generate(SYNTHETIC_COPIES));
+        long large = measureBytesPerEnvelope(mode, generate(2 * SYNTHETIC_COPIES));
+        assertThat(large)
+                .describedAs("bytes allocated per envelope in %s for %d copies", mode, 2 * SYNTHETIC_COPIES)
+                .isLessThanOrEqualTo((long) (small * SCALING_MARGIN));
+    }
+
+    private static List<Envelope> generate(int copies) throws IOException {
+        try (Stream<Envelope> stream = SyntheticMessages.generate(SyntheticMessages.fixture("examples-tables"), copies)) {
+            return stream.collect(Collectors.toList());
+        }
+    }
+
+    private static long measureBytesPerEnvelope(Mode mode, List<Envelope> messages) throws IOException {
+        // Warm up, class loading and lazy initialization are not of interest.
+        write(mode, messages);
+        long before = ThreadAllocation.allocatedBytes();
+        write(mode, messages);
+        long allocated = ThreadAllocation.allocatedBytes() - before;
+        return allocated / Math.max(1, messages.size());
+    }
+
+    private static void write(Mode mode, List<Envelope> messages) throws IOException {
+        try (MessagesToTeamCityWriter writer = mode.builder.get().build(OutputStream.nullOutputStream())) {
+            for (Envelope message : messages) {
+                writer.write(message);
+            }
+        }
+    }
+
+    /**
+     * The budgets are in bytes per envelope. Small fixtures include the fixed
+     * cost of creating a writer, so their budget is higher.
+     */
+    enum Mode {
+        REAL_TIME(MessagesToTeamCityWriter::builder, 32 * 1024, 4 * 1024),
+        AFTER_TEST_RUN(() -> MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true), 40 * 1024, 6 * 1024),
+        AFTER_TEST_RUN_COLLAPSE_RETRIED(() -> MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                .feature(COLLAPSE_RETRIED_TEST_CASES, true), 40 * 1024, 6 * 1024);
+
+        private final Supplier<MessagesToTeamCityWriter.Builder> builder;
+        private final long fixtureBudget;
+        private final long syntheticBudget;
+
+        Mode(Supplier<MessagesToTeamCityWriter.Builder> builder, long fixtureBudget, long syntheticBudget) {
+            this.builder = builder;
+            this.fixtureBudget = fixtureBudget;
+            this.syntheticBudget = syntheticBudget;
+        }
+    }
+
+    /**
+     * Reads {@code com.sun.management.ThreadMXBean.getCurrentThreadAllocatedBytes}.
+     * <p>
+     * Accessed reflectively because the module under test does not read
+     * {@code jdk.management}.
+     */
+    private static final class ThreadAllocation {
+        private static final Object threadMXBean;
+        private static final Method getCurrentThreadAllocatedBytes;
+
+        static {
+            try {
+                threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean")
+                        .invoke(null);
+                getCurrentThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getCurrentThreadAllocatedBytes");
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static long allocatedBytes() {
+            try {
+                return (long) getCurrentThreadAllocatedBytes.invoke(threadMXBean);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
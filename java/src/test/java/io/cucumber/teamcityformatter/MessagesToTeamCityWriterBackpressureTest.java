@@ -0,0 +1,150 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Envelope;
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.COLLAPSE_RETRIED_TEST_CASES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures how the writer behaves when the output is consumed slowly.
+ * <p>
+ * A synthetic stream is written to a {@link ThrottledOutputStream} in every
+ * mode. The latency percentiles of {@code write()}, the throughput and the
+ * peak heap usage are published as report entries.
+ * <p>
+ * Tagged as a benchmark, and excluded from the default build. Run it with
+ * {@code mvn test -Dbenchmarks.excluded= -Dgroups=benchmark}.
+ * <p>
+ * The defaults keep the test fast. For a soak test, configure the stream and
+ * the slow consumer with the system properties below, for example
+ * {@code -Dbackpressure.copies=5000 -Dbackpressure.stallMillis=50}.
+ */
+@Tag("benchmark")
+class MessagesToTeamCityWriterBackpressureTest {
+
+    private static final int COPIES = Integer.getInteger("backpressure.copies", 50);
+    private static final long LATENCY_MICROS = Long.getLong("backpressure.latencyMicros", 20);
+    private static final long BYTES_PER_SECOND = Long.getLong("backpressure.bytesPerSecond", 64 * 1024 * 1024);
+    private static final long STALL_EVERY_BYTES = Long.getLong("backpressure.stallEveryBytes", 256 * 1024);
+    private static final long STALL_MILLIS = Long.getLong("backpressure.stallMillis", 5);
+
+    private static final int HEAP_SAMPLE_INTERVAL = 256;
+
+    @ParameterizedTest
+    @EnumSource(Mode.class)
+    void writes_everything_to_a_slow_consumer(Mode mode, TestReporter reporter) throws IOException {
+        List<Envelope> messages;
+        try (Stream<Envelope> stream = SyntheticMessages.generate(SyntheticMessages.fixture("examples-tables"), COPIES)) {
+            messages = stream.collect(Collectors.toList());
+        }
+        long expected = countBytes(mode, messages);
+
+        ThrottledOutputStream out = new ThrottledOutputStream(
+                TimeUnit.MICROSECONDS.toNanos(LATENCY_MICROS),
+                BYTES_PER_SECOND,
+                STALL_EVERY_BYTES,
+                TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS));
+        long[] latencies = new long[messages.size()];
+        long peakHeap = 0;
+        long started = System.nanoTime();
+        try (MessagesToTeamCityWriter writer = mode.build(out)) {
+            for (int i = 0; i < messages.size(); i++) {
+                long before = System.nanoTime();
+                writer.write(messages.get(i));
+                latencies[i] = System.nanoTime() - before;
+                if (i % HEAP_SAMPLE_INTERVAL == 0) {
+                    peakHeap = Math.max(peakHeap, usedHeap());
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+
+        report(reporter, messages.size(), out.getWritten(), elapsed, latencies, Math.max(peakHeap, usedHeap()));
+        assertThat(out.getWritten())
+                .describedAs("bytes written to the slow consumer in %s", mode)
+                .isEqualTo(expected);
+    }
+
+    private static long countBytes(Mode mode, List<Envelope> messages) throws IOException {
+        ThrottledOutputStream out = new ThrottledOutputStream(0, 0, 0, 0);
+        try (MessagesToTeamCityWriter writer = mode.build(out)) {
+            for (Envelope message : messages) {
+                writer.write(message);
+            }
+        }
+        return out.getWritten();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(
+            TestReporter reporter, int envelopes, long bytes, long elapsedNanos, long[] latencies, long peakHeap
+    ) {
+        Arrays.sort(latencies);
+        double seconds = elapsedNanos / 1e9;
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("envelopes", String.valueOf(envelopes));
+        entries.put("bytes", String.valueOf(bytes));
+        entries.put("envelopes/s", "%.0f".formatted(envelopes / seconds));
+        entries.put("MiB/s", "%.1f".formatted(bytes / seconds / (1024 * 1024)));
+        entries.put("write() p50 µs", String.valueOf(percentile(latencies, 50)));
+        entries.put("write() p95 µs", String.valueOf(percentile(latencies, 95)));
+        entries.put("write() p99 µs", String.valueOf(percentile(latencies, 99)));
+        entries.put("write() max µs", String.valueOf(TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1])));
+        entries.put("peak heap MiB", String.valueOf(peakHeap / (1024 * 1024)));
+        reporter.publishEntry(entries);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    enum Mode {
+        REAL_TIME(MessagesToTeamCityWriter::builder, false),
+        REAL_TIME_ISOLATED_SINKS(MessagesToTeamCityWriter::builder, true),
+        AFTER_TEST_RUN(() -> MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true), false),
+        AFTER_TEST_RUN_COLLAPSE_RETRIED(() -> MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                .feature(COLLAPSE_RETRIED_TEST_CASES, true), false);
+
+        private final Supplier<MessagesToTeamCityWriter.Builder> builder;
+        private final boolean isolated;
+
+        Mode(Supplier<MessagesToTeamCityWriter.Builder> builder, boolean isolated) {
+            this.builder = builder;
+            this.isolated = isolated;
+        }
+
+        MessagesToTeamCityWriter build(OutputStream out) {
+            if (!isolated) {
+                return builder.get().build(out);
+            }
+            // A second sink runs every sink on its own thread
+            return builder.get()
+                    .sink(OutputStream.nullOutputStream(), FlushPolicy.ON_CLOSE)
+                    .build(out);
+        }
+    }
+}
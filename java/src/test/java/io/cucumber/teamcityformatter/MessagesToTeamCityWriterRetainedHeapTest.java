@@ -0,0 +1,116 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Envelope;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.COLLAPSE_RETRIED_TEST_CASES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the heap retained by the writer when printing test cases after
+ * the test run.
+ * <p>
+ * The retained heap is the size of the object graph reachable from the
+ * writer just before the test run finished message is written, so it does
+ * not depend on garbage collection.
+ * <p>
+ * A synthetic stream with many identical text attachments must retain less
+ * than the same stream where every text attachment is distinct, as the
+ * retained strings are deduplicated. Text attachments beyond the attachment
+ * limit must not be retained at all. The heap retained per envelope is
+ * reported on standard out.
+ * <p>
+ * Configure the size of the stream with {@code -DretainedHeap.copies=20000}.
+ */
+class MessagesToTeamCityWriterRetainedHeapTest {
+
+    private static final int COPIES = Integer.getInteger("retainedHeap.copies", 2000);
+
+    @Test
+    void retains_less_heap_with_duplicate_attachments() throws IOException {
+        long duplicated = measureRetainedHeap("attachments", COPIES, (line, copy) -> line);
+        long distinct = measureRetainedHeap("attachments", COPIES, (line, copy) -> isTextAttachment(line)
+                ? line.replace("\"body\":\"", "\"body\":\"" + copy + " ")
+                : line);
+
+        assertThat(duplicated).isLessThan(distinct);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"attachments", "retry"})
+    void reports_heap_retained_per_envelope(String fixture) throws IOException {
+        long envelopes;
+        try (Stream<Envelope> messages = SyntheticMessages.generate(SyntheticMessages.fixture(fixture), COPIES)) {
+            envelopes = messages.count();
+        }
+        long retained = measureRetainedHeap(fixture, COPIES, (line, copy) -> line);
+
+        System.out.printf("Retained heap for %d copies of %s: %d KiB, %d bytes per envelope%n",
+                COPIES, fixture, retained / 1024, retained / envelopes);
+        assertThat(retained).isPositive();
+    }
+
+    @Test
+    void does_not_retain_text_attachments_beyond_the_limit() throws IOException {
+        int copies = 100;
+        String padding = "x".repeat(32 * 1024);
+        long bodies = copies * countTextAttachments("attachments") * (long) padding.length();
+        long retained;
+        try (Stream<Envelope> messages = SyntheticMessages.generate(SyntheticMessages.fixture("attachments"), copies,
+                (line, copy) -> isTextAttachment(line) ? line.replace("\"body\":\"", "\"body\":\"" + padding) : line)) {
+            retained = measureRetainedHeap(messages.iterator(), MessagesToTeamCityWriter.builder()
+                    .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                    .attachmentLimit(1024));
+        }
+
+        assertThat(retained).isLessThan(bodies / 2);
+    }
+
+    private static long countTextAttachments(String fixture) throws IOException {
+        return Files.readAllLines(SyntheticMessages.fixture(fixture)).stream()
+                .filter(MessagesToTeamCityWriterRetainedHeapTest::isTextAttachment)
+                .count();
+    }
+
+    private static boolean isTextAttachment(String line) {
+        return line.startsWith("{\"attachment\"") && line.contains("\"contentEncoding\":\"IDENTITY\"");
+    }
+
+    private static long measureRetainedHeap(
+            String fixture, int copies, BiFunction<String, Integer, String> customizer
+    ) throws IOException {
+        try (Stream<Envelope> messages = SyntheticMessages.generate(
+                SyntheticMessages.fixture(fixture), copies, customizer)) {
+            return measureRetainedHeap(messages.iterator(), MessagesToTeamCityWriter.builder()
+                    .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                    .feature(COLLAPSE_RETRIED_TEST_CASES, true));
+        }
+    }
+
+    private static long measureRetainedHeap(Iterator<Envelope> messages, MessagesToTeamCityWriter.Builder builder)
+            throws IOException {
+        long retained = 0;
+        try (MessagesToTeamCityWriter writer = builder.build(OutputStream.nullOutputStream())) {
+            while (messages.hasNext()) {
+                Envelope message = messages.next();
+                if (message.getTestRunFinished().isPresent()) {
+                    // Everything is retained until the test run finished message.
+                    retained = GraphLayout.parseInstance(writer).totalSize();
+                }
+                writer.write(message);
+            }
+        }
+        return retained;
+    }
+}
@@ -1,23 +1,58 @@
 package io.cucumber.teamcityformatter;
 
+import io.cucumber.messages.NdjsonToMessageReader;
+import io.cucumber.messages.ndjson.Json;
 import io.cucumber.messages.types.Envelope;
 import io.cucumber.messages.types.TestRunFinished;
 import io.cucumber.messages.types.TestRunStarted;
+import io.cucumber.messages.types.TestStepFinished;
 import io.cucumber.messages.types.Timestamp;
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.FlushPolicy;
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.OverloadPolicy;
+import org.jspecify.annotations.Nullable;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static io.cucumber.messages.Convertor.toMessage;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.ProfileOutput.BUILD_STATISTIC_VALUES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.ProfileOutput.MESSAGE;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.COLLAPSE_RETRIED_TEST_CASES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.FLATTEN_EXAMPLES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.FLATTEN_RULES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.FLATTEN_SCENARIO_OUTLINES;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_DURATION_STATISTICS;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_SCENARIOS_AS_TESTS;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_SNIPPETS_ONCE;
+import static io.cucumber.teamcityformatter.MessagesToTeamCityWriter.TeamCityFeature.PRINT_TEST_CASES_AFTER_TEST_RUN;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class MessagesToTeamCityWriterTest {
 
+    private static final NdjsonToMessageReader.Deserializer deserializer = Json.instance()
+            .map(json -> json.deserializer(Envelope.class))
+            .orElseThrow()::readValue;
+
     @Test
     void it_writes_two_messages_to_messages() throws IOException {
         Instant started = Instant.ofEpochSecond(10);
@@ -60,6 +95,556 @@ class MessagesToTeamCityWriterTest {
         assertDoesNotThrow(messagesToHtmlWriter::close);
     }
 
+    @Test
+    void it_collapses_retried_test_cases() throws IOException {
+        String output = renderFixture("retry", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                .feature(COLLAPSE_RETRIED_TEST_CASES, true));
+
+        assertThat(output)
+                .containsOnlyOnce("##teamcity[message text='Retried 1 time(s), last failure: Exception in step' status='WARNING']")
+                .contains("##teamcity[message text='Retried 2 time(s), last failure: Exception in step' status='WARNING']")
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'a step that passes the second time']")
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'a step that passes the third time']")
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'a step that always fails']");
+    }
+
+    @Test
+    void it_flattens_rules() throws IOException {
+        String output = renderFixture("rules", MessagesToTeamCityWriter.builder()
+                .feature(FLATTEN_RULES, true));
+
+        assertThat(output)
+                .containsOnlyOnce("locationHint = 'samples/rules/rules.feature:9' name = 'A sale cannot happen if the customer does not have enough money > Not enough money']")
+                .containsOnlyOnce("locationHint = 'samples/rules/rules.feature:25' name = 'a sale cannot happen if there is no stock > No chocolates left']")
+                .doesNotContain("locationHint = 'samples/rules/rules.feature:7'");
+    }
+
+    @Test
+    void it_flattens_examples() throws IOException {
+        String output = renderFixture("examples-tables", MessagesToTeamCityWriter.builder()
+                .feature(FLATTEN_EXAMPLES, true));
+
+        assertThat(output)
+                .containsOnlyOnce("locationHint = 'samples/examples-tables/examples-tables.feature:11' name = 'Eating cucumbers']")
+                .containsOnlyOnce("locationHint = 'samples/examples-tables/examples-tables.feature:19' name = 'These are passing > #1.1']")
+                .containsOnlyOnce("locationHint = 'samples/examples-tables/examples-tables.feature:35' name = '#1.1: Eating cucumbers with 11 friends']")
+                .doesNotContain("locationHint = 'samples/examples-tables/examples-tables.feature:17'")
+                .doesNotContain("locationHint = 'samples/examples-tables/examples-tables.feature:33'");
+    }
+
+    @Test
+    void it_flattens_scenario_outlines() throws IOException {
+        String output = renderFixture("examples-tables", MessagesToTeamCityWriter.builder()
+                .feature(FLATTEN_SCENARIO_OUTLINES, true));
+
+        assertThat(output)
+                .containsOnlyOnce("locationHint = 'samples/examples-tables/examples-tables.feature:19' name = 'Eating cucumbers > These are passing > #1.1']")
+                .containsOnlyOnce("locationHint = 'samples/examples-tables/examples-tables.feature:35' name = 'Eating cucumbers with <friends> friends > #1.1: Eating cucumbers with 11 friends']")
+                .contains("captureStandardOutput = 'true' name = 'there are 12 cucumbers']");
+        // The test run, the feature and one suite per example.
+        assertThat(countLinesContaining(output, "testSuiteStarted")).isEqualTo(9);
+        assertThat(countLinesContaining(output, "testSuiteFinished")).isEqualTo(9);
+    }
+
+    @Test
+    void it_prints_scenarios_as_tests() throws IOException {
+        String output = renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_SCENARIOS_AS_TESTS, true));
+
+        assertThat(output).isEqualToNormalizingNewlines("""
+                ##teamcity[enteredTheMatrix timestamp = '1970-01-01T12:00:00.000+0000']
+                ##teamcity[testSuiteStarted timestamp = '1970-01-01T12:00:00.000+0000' name = 'Cucumber']
+                ##teamcity[customProgressStatus testsCategory = 'Scenarios' count = '0' timestamp = '1970-01-01T12:00:00.000+0000']
+                ##teamcity[testSuiteStarted timestamp = '1970-01-01T12:00:00.001+0000' locationHint = 'samples/minimal/minimal.feature:1' name = 'minimal']
+                ##teamcity[customProgressStatus type = 'testStarted' timestamp = '1970-01-01T12:00:00.001+0000']
+                ##teamcity[testStarted timestamp = '1970-01-01T12:00:00.001+0000' locationHint = 'samples/minimal/minimal.feature:9' captureStandardOutput = 'true' name = 'cukes']
+                ##teamcity[testFinished timestamp = '1970-01-01T12:00:00.004+0000' duration = '3' name = 'cukes']
+                ##teamcity[customProgressStatus type = 'testFinished' timestamp = '1970-01-01T12:00:00.004+0000']
+                ##teamcity[customProgressStatus testsCategory = '' count = '0' timestamp = '1970-01-01T12:00:00.005+0000']
+                ##teamcity[testSuiteFinished timestamp = '1970-01-01T12:00:00.005+0000' name = 'minimal']
+                ##teamcity[testSuiteFinished timestamp = '1970-01-01T12:00:00.005+0000' name = 'Cucumber']
+                """);
+    }
+
+    @Test
+    void it_prints_the_step_outcomes_of_a_failed_scenario() throws IOException {
+        String output = renderFixture("all-statuses", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_SCENARIOS_AS_TESTS, true));
+
+        assertThat(output)
+                .containsOnlyOnce("message = 'Step failed' details = 'Error: whoops|nsamples/all-statuses/all-statuses.feature:13|n|nSteps:|n  PASSED a step|n  FAILED a failing step|n  SKIPPED a step' name = 'Failing']")
+                .containsOnlyOnce("message = 'Step pending' details = '|n|nSteps:|n  PASSED a step|n  PENDING a pending step|n  SKIPPED a step' name = 'Pending']")
+                .doesNotContain("name = 'a step']");
+    }
+
+    @Test
+    void it_prints_scenarios_as_tests_after_the_test_run() throws IOException {
+        String output = renderFixture("all-statuses", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_SCENARIOS_AS_TESTS, true)
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true));
+
+        assertThat(output).isEqualTo(renderFixture("all-statuses", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_SCENARIOS_AS_TESTS, true)));
+    }
+
+    @Test
+    void it_prints_snippets_once() throws IOException {
+        String output = renderFixture("undefined", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_SNIPPETS_ONCE, true));
+
+        assertThat(output)
+                .containsOnlyOnce("Given(\"a step that is yet to be defined\"")
+                .containsOnlyOnce("Given(\"a list of {int} things\"");
+        assertThat(countLinesContaining(output,
+                "details = 'You can implement this step using the snippet(s) printed for samples/undefined/undefined.feature:8|n'"))
+                .isEqualTo(2);
+    }
+
+    @Test
+    void it_prints_snippets_for_every_undefined_step_by_default() throws IOException {
+        String output = renderFixture("undefined", MessagesToTeamCityWriter.builder());
+
+        assertThat(countLinesContaining(output, "Given(\"a step that is yet to be defined\"")).isEqualTo(3);
+    }
+
+    @Test
+    void it_collapses_passing_hooks() throws IOException {
+        String output = renderFixture("hooks", MessagesToTeamCityWriter.builder()
+                .collapsePassingHooks(Duration.ofMillis(1)));
+
+        assertThat(output)
+                .doesNotContain("name = 'Before']")
+                .doesNotContain("name = 'After']")
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'a step passes']")
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'a step fails']");
+    }
+
+    @Test
+    void it_collapses_passing_hooks_after_the_test_run() throws IOException {
+        String output = renderFixture("hooks", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_TEST_CASES_AFTER_TEST_RUN, true)
+                .collapsePassingHooks(Duration.ofMillis(1)));
+
+        assertThat(output)
+                .doesNotContain("name = 'Before']")
+                .doesNotContain("name = 'After']")
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'a step passes']");
+    }
+
+    @Test
+    void it_prints_passing_hooks_that_exceed_the_threshold() throws IOException {
+        String output = renderFixture("hooks", MessagesToTeamCityWriter.builder()
+                .collapsePassingHooks(Duration.ZERO));
+
+        assertThat(output).isEqualTo(renderFixture("hooks", MessagesToTeamCityWriter.builder()));
+    }
+
+    @Test
+    void it_prints_hooks_with_attachments() throws IOException {
+        String output = renderFixture("hooks-attachment", MessagesToTeamCityWriter.builder()
+                .collapsePassingHooks(Duration.ofMillis(1)));
+
+        assertThat(output).isEqualTo(renderFixture("hooks-attachment", MessagesToTeamCityWriter.builder()));
+    }
+
+    @Test
+    void it_prints_failing_hooks() throws IOException {
+        String output = renderFixture("skipped-failing-hook", MessagesToTeamCityWriter.builder()
+                .collapsePassingHooks(Duration.ofMillis(1)));
+
+        assertThat(output)
+                .containsOnlyOnce("captureStandardOutput = 'true' name = 'After']")
+                .contains("message = 'Step failed' details = 'Error: whoops");
+    }
+
+    @Test
+    void it_rejects_invalid_passing_hook_threshold() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.collapsePassingHooks(Duration.ofMillis(-1)));
+    }
+
+    @Test
+    void it_rejects_invalid_reorder_windows() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.reorderWindow(0, 1024));
+        assertThrows(IllegalArgumentException.class, () -> builder.reorderWindow(16, 0));
+    }
+
+    @Test
+    void it_invokes_handlers_before_printing() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<String> handled = new ArrayList<>();
+        renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .handler(TestStepFinished.class, event -> handled.add("step " + event.getTestStepResult().getStatus()))
+                .handler(TestRunFinished.class, event -> handled.add("first"))
+                .handler(TestRunFinished.class, event -> handled.add(
+                        bytes.toString(UTF_8).contains("testSuiteFinished") ? "printed" : "not printed")),
+                bytes);
+
+        assertThat(handled).containsExactly("step PASSED", "first", "not printed");
+    }
+
+    @Test
+    void it_rejects_handlers_for_non_messages() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.handler(String.class, event -> {
+        }));
+    }
+
+    @Test
+    void it_prints_progress_every_n_test_cases() throws IOException {
+        String output = renderFixture("retry", MessagesToTeamCityWriter.builder()
+                .progressEvery(2));
+
+        assertThat(countLinesContaining(output, "customProgressStatus type = 'testStarted'")).isEqualTo(4);
+        assertThat(countLinesContaining(output, "customProgressStatus type = 'testFinished'")).isEqualTo(4);
+        assertThat(output)
+                .containsOnlyOnce("customProgressStatus testsCategory = 'Scenarios' count = '0'")
+                .containsOnlyOnce("customProgressStatus testsCategory = '' count = '0'");
+    }
+
+    @Test
+    void it_prints_progress_at_an_interval() throws IOException {
+        String output = renderFixture("retry", MessagesToTeamCityWriter.builder()
+                .progressInterval(Duration.ofMillis(10)));
+
+        assertThat(countLinesContaining(output, "customProgressStatus type = 'testStarted'")).isEqualTo(3);
+        assertThat(countLinesContaining(output, "customProgressStatus type = 'testFinished'")).isEqualTo(3);
+    }
+
+    @Test
+    void it_rejects_invalid_progress_configuration() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.progressEvery(0));
+        assertThrows(IllegalArgumentException.class, () -> builder.progressInterval(Duration.ofMillis(-1)));
+    }
+
+    @Test
+    void it_prints_duration_statistics() throws IOException {
+        String output = renderFixture("examples-tables", MessagesToTeamCityWriter.builder()
+                .feature(PRINT_DURATION_STATISTICS, true)
+                .slowestScenarios(2));
+
+        assertThat(output)
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.scenarios.count' value='7']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.scenarios.duration.total' value='49']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.scenarios.duration.p95' value='7']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.steps.count' value='21']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.steps.duration.max' value='1']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.features.samples/examples-tables/examples-tables.feature.count' value='7']");
+        assertThat(countLinesContaining(output, "key='cucumber.scenarios.slowest.")).isEqualTo(2);
+    }
+
+    @Test
+    void it_does_not_print_duration_statistics_by_default() throws IOException {
+        String output = renderFixture("examples-tables", MessagesToTeamCityWriter.builder());
+
+        assertThat(output).doesNotContain("buildStatisticValue");
+    }
+
+    @Test
+    void it_rejects_invalid_slowest_scenarios() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.slowestScenarios(-1));
+    }
+
+    @Test
+    void it_warns_about_steps_that_exceed_the_watchdog_threshold() throws IOException {
+        long[] now = {0};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MessagesToTeamCityWriter writer = MessagesToTeamCityWriter.builder()
+                .stepWatchdog(Duration.ofMillis(50))
+                .stepWatchdogClock(() -> now[0])
+                .build(bytes)) {
+            for (Envelope message : readFixture("minimal")) {
+                writer.write(message);
+                if (message.getTestStepStarted().isPresent()) {
+                    now[0] += Duration.ofMillis(100).toNanos();
+                    writer.checkRunningSteps();
+                }
+            }
+        }
+
+        assertThat(new String(bytes.toByteArray(), UTF_8))
+                .containsOnlyOnce("##teamcity[message text='Step |'I have 42 cukes in my belly|' of |'cukes|' has been running for 100 ms' status='WARNING']");
+    }
+
+    @Test
+    void it_rejects_invalid_step_watchdog_threshold() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.stepWatchdog(Duration.ZERO));
+    }
+
+    @Test
+    void it_prints_the_step_definition_profile_as_build_statistic_values() throws IOException {
+        String output = renderFixture("examples-tables", MessagesToTeamCityWriter.builder()
+                .stepDefinitionProfile(2, BUILD_STATISTIC_VALUES));
+
+        assertThat(output)
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.glue.samples/examples-tables/examples-tables.ts:4.count' value='7']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.glue.samples/examples-tables/examples-tables.ts:4.duration.total' value='7']")
+                .containsOnlyOnce("##teamcity[buildStatisticValue key='cucumber.glue.samples/examples-tables/examples-tables.ts:4.duration.mean' value='1']");
+        assertThat(countLinesContaining(output, "key='cucumber.glue.")).isEqualTo(8);
+    }
+
+    @Test
+    void it_prints_the_step_definition_profile_as_message() throws IOException {
+        String output = renderFixture("hooks", MessagesToTeamCityWriter.builder()
+                .stepDefinitionProfile(10, MESSAGE));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Step definition profile, top 4 of 4 by total duration|n")
+                .contains("  Before (samples/hooks/hooks.ts:3)|n")
+                .contains("  After (samples/hooks/hooks.ts:15)|n");
+    }
+
+    @Test
+    void it_writes_the_step_definition_profile_to_an_artifact(@TempDir Path directory) throws IOException {
+        Path artifact = directory.resolve("profile").resolve("step-definitions.txt");
+        String output = renderFixture("examples-tables", MessagesToTeamCityWriter.builder()
+                .stepDefinitionProfile(10, artifact));
+
+        assertThat(output).contains("##teamcity[publishArtifacts '" + artifact.toAbsolutePath() + "']");
+        assertThat(Files.readString(artifact))
+                .startsWith("Step definition profile, top 5 of 5 by total duration\n")
+                .contains("  there are {int} cucumbers (samples/examples-tables/examples-tables.ts:4)\n");
+    }
+
+    @Test
+    void it_rejects_invalid_step_definition_profile_configuration() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.stepDefinitionProfile(0, MESSAGE));
+    }
+
+    @Test
+    void it_warns_about_scenarios_slower_than_their_baseline(@TempDir Path directory) throws IOException {
+        Path baseline = directory.resolve("durations.txt");
+        Files.writeString(baseline, "1\tsamples/minimal/minimal.feature:9\n5\tsamples/other.feature:1\n");
+        String output = renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .durationBaseline(baseline, 50, Duration.ofMillis(1)));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Scenario samples/minimal/minimal.feature:9 took 3 ms, "
+                        + "which is slower than its baseline of 1 ms' status='WARNING']")
+                .contains("##teamcity[buildStatisticValue key='cucumber.scenarios.regressions' value='1']");
+        assertThat(Files.readString(baseline))
+                .isEqualToNormalizingNewlines("5\tsamples/other.feature:1\n3\tsamples/minimal/minimal.feature:9\n");
+    }
+
+    @Test
+    void it_creates_a_missing_baseline(@TempDir Path directory) throws IOException {
+        Path baseline = directory.resolve("baseline").resolve("durations.txt");
+        String output = renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .durationBaseline(baseline, 0, Duration.ZERO));
+
+        assertThat(output)
+                .doesNotContain("slower than its baseline")
+                .contains("##teamcity[buildStatisticValue key='cucumber.scenarios.regressions' value='0']");
+        assertThat(Files.readString(baseline)).isEqualToNormalizingNewlines("3\tsamples/minimal/minimal.feature:9\n");
+    }
+
+    @Test
+    void it_warns_when_the_baseline_can_not_be_read_or_written(@TempDir Path directory) throws IOException {
+        // A directory can be neither read nor written as a file.
+        String output = renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .durationBaseline(directory, 0, Duration.ZERO));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Could not read the duration baseline " + directory.toAbsolutePath())
+                .contains("##teamcity[message text='Could not write the duration baseline " + directory.toAbsolutePath())
+                .contains("##teamcity[buildStatisticValue key='cucumber.scenarios.regressions' value='0']");
+    }
+
+    @Test
+    void it_rejects_invalid_duration_baseline_configuration(@TempDir Path directory) {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        Path baseline = directory.resolve("durations.txt");
+        assertThrows(IllegalArgumentException.class, () -> builder.durationBaseline(baseline, -1, Duration.ZERO));
+        assertThrows(IllegalArgumentException.class,
+                () -> builder.durationBaseline(baseline, 0, Duration.ofMillis(-1)));
+    }
+
+    @Test
+    void it_writes_a_timing_manifest(@TempDir Path directory) throws IOException {
+        Path manifest = directory.resolve("timings").resolve("scenarios.tsv");
+        String output = renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .timingManifest(manifest));
+
+        assertThat(output).contains("##teamcity[publishArtifacts '" + manifest.toAbsolutePath() + "']");
+        assertThat(Files.readString(manifest)).isEqualToNormalizingNewlines("""
+                # uri\tline\tduration\truns\tstatus\tname
+                samples/minimal/minimal.feature\t9\t3\t1\tPASSED\tcukes
+                """);
+    }
+
+    @Test
+    void it_warns_when_the_timing_manifest_can_not_be_written(@TempDir Path directory) throws IOException {
+        String output = renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .timingManifest(directory));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Could not write the timing manifest " + directory.toAbsolutePath())
+                .doesNotContain("publishArtifacts");
+    }
+
+    @Test
+    void it_truncates_text_attachments() throws IOException {
+        String output = renderFixture("attachments", MessagesToTeamCityWriter.builder()
+                .attachmentLimit(3));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Write event:|nhel|n|[Truncated: showing 3 of 5 bytes|]|n' status='NORMAL']")
+                .doesNotContain("Write event:|nhello|n");
+    }
+
+    @Test
+    void it_truncates_text_attachments_per_test_case() throws IOException {
+        String output = renderFixture("attachments", MessagesToTeamCityWriter.builder()
+                .testCaseAttachmentLimit(4));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Write event:|nhell|n|[Truncated: showing 4 of 5 bytes|]|n' status='NORMAL']");
+    }
+
+    @Test
+    void it_writes_large_text_attachments_to_a_file(@TempDir Path directory) throws IOException {
+        String output = renderFixture("attachments", MessagesToTeamCityWriter.builder()
+                .attachmentLimit(3)
+                .attachmentOverflowDirectory(directory));
+
+        assertThat(output)
+                .contains("##teamcity[message text='Write event:|n|[5 bytes written to " + directory)
+                .doesNotContain("Truncated");
+        try (var files = Files.list(directory)) {
+            assertThat(files.count()).isEqualTo(6);
+        }
+    }
+
+    @Test
+    void it_rejects_invalid_attachment_limits() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.attachmentLimit(0));
+        assertThrows(IllegalArgumentException.class, () -> builder.testCaseAttachmentLimit(0));
+    }
+
+    @Test
+    void it_writes_the_same_messages_to_every_sink() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        renderFixture("attachments", MessagesToTeamCityWriter.builder(), expected);
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        ByteArrayOutputStream third = new ByteArrayOutputStream();
+        renderFixture("attachments", MessagesToTeamCityWriter.builder()
+                .sink(second, FlushPolicy.ON_CLOSE)
+                .sink(third, FlushPolicy.EVERY_MESSAGE), first);
+
+        assertThat(first.toByteArray()).isEqualTo(expected.toByteArray());
+        assertThat(second.toByteArray()).isEqualTo(expected.toByteArray());
+        assertThat(third.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    void it_writes_to_the_remaining_sinks_when_a_sink_fails() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        renderFixture("minimal", MessagesToTeamCityWriter.builder(), expected);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+
+            @Override
+            public void close() throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        renderFixture("minimal", MessagesToTeamCityWriter.builder()
+                .sink(broken, FlushPolicy.EVERY_MESSAGE)
+                .sink(bytes, FlushPolicy.ON_CLOSE), null);
+
+        assertThat(bytes.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    void it_writes_to_a_channel(@TempDir Path directory) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        renderFixture("attachments", MessagesToTeamCityWriter.builder(), expected);
+
+        Path file = directory.resolve("teamcity.log");
+        try (MessagesToTeamCityWriter writer = MessagesToTeamCityWriter.builder()
+                .build(FileChannel.open(file, CREATE_NEW, WRITE), FlushPolicy.ON_CLOSE)) {
+            for (Envelope message : readFixture("attachments")) {
+                writer.write(message);
+            }
+        }
+
+        assertThat(Files.readAllBytes(file)).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    void it_writes_to_a_channel_after_every_message() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MessagesToTeamCityWriter writer = MessagesToTeamCityWriter.builder()
+                .build(Channels.newChannel(bytes))) {
+            writer.write(Envelope.of(new TestRunStarted(new Timestamp(0L, 0), "")));
+
+            assertThat(bytes.toString(UTF_8)).startsWith("##teamcity[enteredTheMatrix");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(OverloadPolicy.class)
+    void it_writes_everything_when_not_overloaded(OverloadPolicy policy) throws IOException {
+        String expected = renderFixture("hooks", MessagesToTeamCityWriter.builder());
+        String output = renderFixture("hooks", MessagesToTeamCityWriter.builder()
+                .overloadPolicy(policy, 1024 * 1024));
+
+        assertThat(output).isEqualTo(expected);
+    }
+
+    @Test
+    void it_rejects_invalid_overload_watermark() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.overloadPolicy(OverloadPolicy.SHED, 0));
+    }
+
+    @Test
+    void it_requires_a_sink() {
+        MessagesToTeamCityWriter.Builder builder = MessagesToTeamCityWriter.builder();
+        assertThrows(IllegalStateException.class, builder::build);
+    }
+
+    private static long countLinesContaining(String output, String text) {
+        return output.lines().filter(line -> line.contains(text)).count();
+    }
+
+    private static String renderFixture(String name, MessagesToTeamCityWriter.Builder builder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        renderFixture(name, builder, bytes);
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    private static void renderFixture(String name, MessagesToTeamCityWriter.Builder builder, @Nullable OutputStream out) throws IOException {
+        try (MessagesToTeamCityWriter writer = out == null ? builder.build() : builder.build(out)) {
+            for (Envelope message : readFixture(name)) {
+                writer.write(message);
+            }
+        }
+    }
+
+    static List<Envelope> readFixture(String name) throws IOException {
+        Path source = Paths.get("..", "testdata", "src", name + ".ndjson");
+        try (var in = Files.newInputStream(source)) {
+            try (var reader = new NdjsonToMessageReader(in, deserializer)) {
+                return reader.lines().collect(Collectors.toList());
+            }
+        }
+    }
+
     private static String renderAsPretty(Envelope... messages) throws IOException {
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         try (MessagesToTeamCityWriter messagesToHtmlWriter = create(bytes)) {
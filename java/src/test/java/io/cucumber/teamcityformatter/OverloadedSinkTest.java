@@ -0,0 +1,141 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.teamcityformatter.MessagesToTeamCityWriter.OverloadPolicy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static io.cucumber.teamcityformatter.MessagePriority.LOW;
+import static io.cucumber.teamcityformatter.MessagePriority.LOW_FINISHED;
+import static io.cucumber.teamcityformatter.MessagePriority.LOW_STARTED;
+import static io.cucumber.teamcityformatter.MessagePriority.NORMAL;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class OverloadedSinkTest {
+
+    private final SlowSink delegate = new SlowSink();
+
+    @Test
+    void sheds_low_priority_messages_when_overloaded() throws InterruptedException {
+        OverloadedSink sink = new OverloadedSink(delegate, OverloadPolicy.SHED, 8, "test");
+        sink.write(bytes("busy"), NORMAL);
+        delegate.writing.await();
+
+        sink.write(bytes("N1.."), NORMAL);
+        sink.write(bytes("N2.."), NORMAL);
+        sink.write(bytes("L1.."), LOW);
+        sink.write(bytes("S1.."), LOW_STARTED);
+        sink.write(bytes("F1.."), LOW_FINISHED);
+        sink.write(bytes("S2.."), LOW_STARTED);
+        sink.write(bytes("N3.."), NORMAL);
+        assertThat(sink.getShed()).isEqualTo(3);
+
+        delegate.proceed.countDown();
+        sink.close();
+        assertThat(delegate.written).containsExactly(
+                "busy",
+                "N1..",
+                "N2..",
+                "S2..",
+                "N3..",
+                "##teamcity[message text='Shed 3 low priority messages, the output could not keep up' status='WARNING']"
+                        + System.lineSeparator());
+    }
+
+    @Test
+    void writes_low_priority_messages_when_not_overloaded() {
+        OverloadedSink sink = new OverloadedSink(delegate, OverloadPolicy.SHED, 1024, "test");
+        delegate.proceed.countDown();
+        sink.write(bytes("L1.."), LOW);
+        sink.write(bytes("S1.."), LOW_STARTED);
+        sink.write(bytes("F1.."), LOW_FINISHED);
+        sink.close();
+        assertThat(sink.getShed()).isZero();
+        assertThat(delegate.written).containsExactly("L1..", "S1..", "F1..");
+    }
+
+    @Test
+    void coalesces_messages_when_overloaded() throws InterruptedException {
+        OverloadedSink sink = new OverloadedSink(delegate, OverloadPolicy.COALESCE, 8, "test");
+        sink.write(bytes("busy"), NORMAL);
+        delegate.writing.await();
+
+        sink.write(bytes("N1.."), NORMAL);
+        sink.write(bytes("L1.."), LOW);
+        sink.write(bytes("N2.."), NORMAL);
+
+        delegate.proceed.countDown();
+        sink.close();
+        assertThat(delegate.written).containsExactly("busy", "N1..L1..N2..");
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = OverloadPolicy.class, names = {"SHED", "COALESCE"})
+    void discards_messages_once_the_delegate_failed(OverloadPolicy policy) {
+        FailingSink delegate = new FailingSink();
+        OverloadedSink sink = new OverloadedSink(delegate, policy, 8, "test");
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            // Far more than twice the watermark
+            for (int i = 0; i < 100; i++) {
+                sink.write(bytes("N%03d".formatted(i)), NORMAL);
+            }
+            sink.close();
+        });
+
+        assertThat(sink.isFailed()).isTrue();
+        assertThat(delegate.writes).isEqualTo(1);
+        assertThat(delegate.closed).isTrue();
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(UTF_8);
+    }
+
+    private static final class FailingSink implements MessageSink {
+        private int writes;
+        private volatile boolean closed;
+
+        @Override
+        public void write(byte[] message) {
+            writes++;
+            throw new UncheckedIOException(new IOException("broken"));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static final class SlowSink implements MessageSink {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch proceed = new CountDownLatch(1);
+        private final List<String> written = new ArrayList<>();
+
+        @Override
+        public void write(byte[] message) {
+            writing.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.add(new String(message, UTF_8));
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
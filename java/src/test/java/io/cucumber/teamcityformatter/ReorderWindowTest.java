@@ -0,0 +1,76 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReorderWindowTest {
+
+    @Test
+    void releases_test_cases_once_no_earlier_test_case_is_running() {
+        ReorderWindow<String> window = new ReorderWindow<>(10, Long.MAX_VALUE);
+        window.started(order("first", 1));
+        window.started(order("second", 2));
+
+        assertThat(window.finished("second", order("second finished", 2), 1, true)).isEmpty();
+        assertThat(window.finished("first", order("first finished", 1), 1, true))
+                .containsExactly("first finished", "second finished");
+        assertThat(window.size()).isZero();
+    }
+
+    @Test
+    void keeps_the_place_of_retried_test_cases() {
+        ReorderWindow<String> window = new ReorderWindow<>(10, Long.MAX_VALUE);
+        window.started(order("first", 1));
+        window.started(order("second", 2));
+
+        assertThat(window.finished("second", order("second finished", 2), 1, true)).isEmpty();
+        assertThat(window.finished("first", order("first attempt", 1), 1, false))
+                .containsExactly("first attempt");
+        window.started(order("first", 1));
+        assertThat(window.finished("first", order("second attempt", 1), 1, true))
+                .containsExactly("second attempt", "second finished");
+    }
+
+    @Test
+    void releases_the_first_test_case_when_holding_too_many_test_cases() {
+        ReorderWindow<String> window = new ReorderWindow<>(1, Long.MAX_VALUE);
+        window.started(order("first", 1));
+        window.started(order("second", 2));
+        window.started(order("third", 3));
+
+        assertThat(window.finished("third", order("third finished", 3), 1, true)).isEmpty();
+        assertThat(window.finished("second", order("second finished", 2), 1, true))
+                .containsExactly("second finished");
+        assertThat(window.size()).isEqualTo(1);
+    }
+
+    @Test
+    void releases_the_first_test_case_when_holding_too_many_bytes() {
+        ReorderWindow<String> window = new ReorderWindow<>(10, 10);
+        window.started(order("first", 1));
+        window.started(order("second", 2));
+        window.started(order("third", 3));
+
+        assertThat(window.finished("third", order("third finished", 3), 5, true)).isEmpty();
+        assertThat(window.finished("second", order("second finished", 2), 6, true))
+                .containsExactly("second finished");
+        assertThat(window.size()).isEqualTo(1);
+    }
+
+    @Test
+    void releases_all_test_cases_in_order() {
+        ReorderWindow<String> window = new ReorderWindow<>(10, Long.MAX_VALUE);
+        window.started(order("first", 1));
+        window.started(order("second", 2));
+        window.started(order("third", 3));
+        window.finished("third", order("third finished", 3), 1, true);
+        window.finished("second", order("second finished", 2), 1, true);
+
+        assertThat(window.finishedAll()).containsExactly("second finished", "third finished");
+    }
+
+    private static <T> OrderableEvent<T> order(T event, int line) {
+        return new OrderableEvent<>(event, "example.feature", line);
+    }
+}
@@ -0,0 +1,38 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.types.Snippet;
+import io.cucumber.messages.types.Suggestion;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SnippetCacheTest {
+
+    @Test
+    void refers_back_to_the_first_occurrence() {
+        SnippetCache cache = new SnippetCache(true);
+
+        assertThat(cache.format(suggestions("1", "a"), () -> "first.feature:1")).contains("a");
+        assertThat(cache.format(suggestions("2", "a"), () -> "second.feature:1"))
+                .isEqualTo("You can implement this step using the snippet(s) printed for first.feature:1\n");
+    }
+
+    @Test
+    void evicts_the_least_recently_used_snippets() {
+        SnippetCache cache = new SnippetCache(true, 2);
+        cache.format(suggestions("1", "a"), () -> "a.feature:1");
+        cache.format(suggestions("2", "b"), () -> "b.feature:1");
+        cache.format(suggestions("3", "a"), () -> "a.feature:2");
+        cache.format(suggestions("4", "c"), () -> "c.feature:1");
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.format(suggestions("5", "a"), () -> "a.feature:3")).contains("a.feature:1");
+        assertThat(cache.format(suggestions("6", "b"), () -> "b.feature:2")).doesNotContain("b.feature");
+    }
+
+    private static List<Suggestion> suggestions(String id, String code) {
+        return List.of(new Suggestion(id, "pickle-step-" + id, List.of(new Snippet("java", code))));
+    }
+}
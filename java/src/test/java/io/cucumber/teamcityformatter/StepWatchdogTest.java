@@ -0,0 +1,75 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StepWatchdogTest {
+
+    private static final long MILLIS = Duration.ofMillis(1).toNanos();
+
+    private final MessageBuffer buffer = new MessageBuffer();
+    private long now;
+    private final StepWatchdog watchdog = new StepWatchdog(
+            new TeamCityCommandWriter(List.of(buffer)), Duration.ofMillis(100), () -> now);
+
+    @Test
+    void warns_once_about_a_step_that_exceeds_the_threshold() {
+        watchdog.testCaseStarted("1", "a scenario");
+        watchdog.testStepStarted("1", "a step");
+        watchdog.check(99 * MILLIS);
+        assertThat(messages()).isEmpty();
+
+        watchdog.check(150 * MILLIS);
+        watchdog.check(300 * MILLIS);
+        assertThat(messages()).containsExactly(
+                "##teamcity[message text='Step |'a step|' of |'a scenario|' has been running for 150 ms' status='WARNING']");
+    }
+
+    @Test
+    void does_not_warn_about_finished_steps() {
+        watchdog.testCaseStarted("1", "a scenario");
+        watchdog.testStepStarted("1", "a step");
+        watchdog.testStepFinished("1");
+        watchdog.check(150 * MILLIS);
+
+        watchdog.testStepStarted("1", "another step");
+        watchdog.testCaseFinished("1");
+        watchdog.check(300 * MILLIS);
+        assertThat(messages()).isEmpty();
+    }
+
+    @Test
+    void watches_test_cases_independently() {
+        watchdog.testCaseStarted("1", "a scenario");
+        watchdog.testCaseStarted("2", "another scenario");
+        watchdog.testStepStarted("1", "a step");
+        now = 50 * MILLIS;
+        watchdog.testStepStarted("2", "a step");
+        watchdog.check(120 * MILLIS);
+        assertThat(messages()).hasSize(1);
+
+        watchdog.check(160 * MILLIS);
+        assertThat(messages()).hasSize(2);
+    }
+
+    @Test
+    void does_not_warn_after_close() {
+        watchdog.testCaseStarted("1", "a scenario");
+        watchdog.testStepStarted("1", "a step");
+        watchdog.close();
+        watchdog.check(150 * MILLIS);
+        assertThat(messages()).isEmpty();
+    }
+
+    private List<String> messages() {
+        return buffer.getMessages().stream()
+                .map(message -> new String(message, UTF_8).strip())
+                .collect(Collectors.toList());
+    }
+}
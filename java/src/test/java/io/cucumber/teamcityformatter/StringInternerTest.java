@@ -0,0 +1,32 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StringInternerTest {
+
+    @Test
+    void returns_the_first_equal_string() {
+        StringInterner interner = new StringInterner();
+        String first = new String("hello");
+        String second = new String("hello");
+
+        assertThat(interner.intern(first)).isSameAs(first);
+        assertThat(interner.intern(second)).isSameAs(first);
+        assertThat(interner.size()).isEqualTo(1);
+    }
+
+    @Test
+    void forgets_strings_when_cleared() {
+        StringInterner interner = new StringInterner();
+        String first = new String("hello");
+        String second = new String("hello");
+        interner.intern(first);
+
+        interner.clear();
+
+        assertThat(interner.size()).isZero();
+        assertThat(interner.intern(second)).isSameAs(second);
+    }
+}
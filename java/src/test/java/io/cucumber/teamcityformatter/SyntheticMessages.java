@@ -0,0 +1,108 @@
+package io.cucumber.teamcityformatter;
+
+import io.cucumber.messages.NdjsonToMessageReader;
+import io.cucumber.messages.ndjson.Json;
+import io.cucumber.messages.types.Envelope;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Creates large message streams by repeating a fixture from
+ * {@code testdata/src}.
+ * <p>
+ * Each copy of the fixture gets its own ids and uris, so the copies are
+ * distinct features, pickles and test cases. The meta data and the test run
+ * started and finished messages are included once.
+ */
+final class SyntheticMessages {
+
+    private static final NdjsonToMessageReader.Deserializer deserializer = Json.instance()
+            .map(json -> json.deserializer(Envelope.class))
+            .orElseThrow()::readValue;
+
+    private static final Pattern URI = Pattern.compile("\"uri\":\"([^\"]*)\\.feature\"");
+
+    private SyntheticMessages() {
+        /* no-op */
+    }
+
+    static Path fixture(String name) {
+        return Paths.get("..", "testdata", "src", name + ".ndjson");
+    }
+
+    static List<Envelope> read(Path fixture) throws IOException {
+        return lines(fixture).map(SyntheticMessages::deserialize).toList();
+    }
+
+    /**
+     * Repeats the fixture {@code copies} times. The stream is created
+     * lazily.
+     */
+    static Stream<Envelope> generate(Path fixture, int copies) throws IOException {
+        return generate(fixture, copies, (line, copy) -> line);
+    }
+
+    /**
+     * Repeats the fixture {@code copies} times, applying {@code customizer}
+     * to each repeated line after its ids and uris have been rewritten.
+     */
+    static Stream<Envelope> generate(
+            Path fixture, int copies, BiFunction<String, Integer, String> customizer
+    ) throws IOException {
+        List<String> lines = lines(fixture).toList();
+        Stream<String> header = lines.stream().filter(SyntheticMessages::isRunMessage).filter(line -> !isTestRunFinished(line));
+        Stream<String> body = IntStream.range(0, copies)
+                .boxed()
+                .flatMap(copy -> lines.stream()
+                        .filter(line -> !isRunMessage(line))
+                        .map(line -> customizer.apply(rewrite(line, copy), copy)));
+        Stream<String> footer = lines.stream().filter(SyntheticMessages::isTestRunFinished);
+        return Stream.of(header, body, footer)
+                .flatMap(stream -> stream)
+                .map(SyntheticMessages::deserialize);
+    }
+
+    private static Stream<String> lines(Path fixture) throws IOException {
+        return Files.readAllLines(fixture).stream().filter(line -> !line.isBlank());
+    }
+
+    private static boolean isRunMessage(String line) {
+        return line.startsWith("{\"meta\"") || line.startsWith("{\"testRunStarted\"") || isTestRunFinished(line);
+    }
+
+    private static boolean isTestRunFinished(String line) {
+        return line.startsWith("{\"testRunFinished\"");
+    }
+
+    private static String rewrite(String line, int copy) {
+        String ids = IdPrefixer.prefixIds(line, copy + "-", key -> !isTestRunStartedId(key));
+        return URI.matcher(ids).replaceAll(match -> quote("\"uri\":\"" + match.group(1) + "-" + copy + ".feature\""));
+    }
+
+    private static boolean isTestRunStartedId(String key) {
+        // The test run is not repeated.
+        return key.equals("testRunStartedId");
+    }
+
+    private static String quote(String replacement) {
+        return Matcher.quoteReplacement(replacement);
+    }
+
+    private static Envelope deserialize(String line) {
+        try {
+            return deserializer.readValue(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package io.cucumber.teamcityformatter;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for a slow consumer, such as a TeamCity agent that reads the
+ * output of the build slowly.
+ * <p>
+ * Every write is delayed by a fixed latency, the throughput is capped at a
+ * number of bytes per second, and the stream stalls for a while every so
+ * many bytes. The written bytes are counted and discarded.
+ */
+final class ThrottledOutputStream extends OutputStream {
+
+    private final long latencyNanos;
+    private final long bytesPerSecond;
+    private final long stallEveryBytes;
+    private final long stallNanos;
+    private final long startedNanos = System.nanoTime();
+    private long written;
+    private long nextStall;
+
+    /**
+     * @param latencyNanos    the delay of every write
+     * @param bytesPerSecond  the maximum throughput, or 0 for unlimited
+     * @param stallEveryBytes the number of bytes between stalls, or 0 for
+     *                        none
+     * @param stallNanos      the duration of a stall
+     */
+    ThrottledOutputStream(long latencyNanos, long bytesPerSecond, long stallEveryBytes, long stallNanos) {
+        this.latencyNanos = latencyNanos;
+        this.bytesPerSecond = bytesPerSecond;
+        this.stallEveryBytes = stallEveryBytes;
+        this.stallNanos = stallNanos;
+        this.nextStall = stallEveryBytes;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        park(latencyNanos);
+        written += len;
+        if (stallEveryBytes > 0 && written >= nextStall) {
+            nextStall = written + stallEveryBytes;
+            park(stallNanos);
+        }
+        if (bytesPerSecond > 0) {
+            long due = startedNanos + TimeUnit.SECONDS.toNanos(written) / bytesPerSecond;
+            park(due - System.nanoTime());
+        }
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    private static void park(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
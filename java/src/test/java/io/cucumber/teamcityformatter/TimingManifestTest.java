@@ -0,0 +1,62 @@
+package io.cucumber.teamcityformatter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TimingManifestTest {
+
+    private static final String HEADER = "# uri\tline\tduration\truns\tstatus\tname\n";
+
+    @Test
+    void merges_manifests_into_rolling_averages(@TempDir Path directory) throws IOException {
+        Path first = write(directory.resolve("first.tsv"),
+                "a.feature\t3\t100\t1\tPASSED\tfirst\n"
+                        + "b.feature\t5\t10\t1\tPASSED\tonly in first\n");
+        Path second = write(directory.resolve("second.tsv"),
+                "a.feature\t3\t200\t1\tFAILED\trenamed\n");
+        Path third = write(directory.resolve("third.tsv"),
+                "a.feature\t3\t300\t1\tPASSED\trenamed\n");
+        Path merged = directory.resolve("merged.tsv");
+
+        TimingManifest.merge(List.of(first, second, directory.resolve("missing.tsv")), merged, 2);
+        assertThat(Files.readString(merged)).isEqualToNormalizingNewlines(HEADER
+                + "a.feature\t3\t150\t2\tFAILED\trenamed\n"
+                + "b.feature\t5\t10\t1\tPASSED\tonly in first\n");
+
+        TimingManifest.merge(List.of(merged, third), merged, 2);
+        assertThat(Files.readString(merged)).isEqualToNormalizingNewlines(HEADER
+                + "a.feature\t3\t200\t2\tPASSED\trenamed\n"
+                + "b.feature\t5\t10\t1\tPASSED\tonly in first\n");
+    }
+
+    @Test
+    void skips_malformed_lines(@TempDir Path directory) throws IOException {
+        Path manifest = write(directory.resolve("manifest.tsv"),
+                "a.feature\tthree\t100\t1\tPASSED\tfirst\n"
+                        + "a.feature\t3\t100\n"
+                        + "a.feature\t3\t100\t0\tPASSED\tfirst\n");
+        Path merged = directory.resolve("merged.tsv");
+
+        TimingManifest.merge(List.of(manifest), merged, 2);
+
+        assertThat(Files.readString(merged)).isEqualToNormalizingNewlines(HEADER);
+    }
+
+    @Test
+    void rejects_invalid_window(@TempDir Path directory) {
+        assertThrows(IllegalArgumentException.class,
+                () -> TimingManifest.merge(List.of(), directory.resolve("merged.tsv"), 0));
+    }
+
+    private static Path write(Path manifest, String entries) throws IOException {
+        return Files.writeString(manifest, HEADER + entries);
+    }
+}